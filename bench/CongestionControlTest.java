@@ -0,0 +1,41 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Checks that losing a whole window backs the retransmission timeout off once, not once per packet.
+ *
+ * Run from the project root:
+ *   javac -d out/bench src/*.java bench/*.java
+ *   java -cp out/bench CongestionControlTest
+ */
+public class CongestionControlTest {
+	public static void main(String[] args) throws Exception {
+		InetAddress localhost = InetAddress.getByName("localhost");
+		try (DatagramChannel sink = DatagramChannel.open().bind(new InetSocketAddress(localhost, 0));
+			 DatagramChannel channel = DatagramChannel.open().bind(new InetSocketAddress(localhost, 0))) {
+			channel.connect(sink.getLocalAddress());
+			PacketSender sender = new PacketSender(PacketQueue.create(Constants.MONITOR_BUFFER_SIZE), channel, localhost,
+					((InetSocketAddress) sink.getLocalAddress()).getPort(), 1);
+			CongestionControl congestion = sender.getCongestionControl();
+			for (int index = 1; index <= Constants.WINDOW_SIZE; index++) {
+				sender.sendNew(new Packet(index, new byte[16], 16));
+			}
+			long rto = congestion.getRto();
+
+			int resent = sender.resendOverdue(System.nanoTime() + rto);
+
+			check(resent == Constants.WINDOW_SIZE, "every packet of the window is resent, got " + resent);
+			check(congestion.getRto() == Math.min(2 * rto, Constants.MAX_RTO_MS * 1000000),
+					"the RTO doubled once: " + rto + " ns became " + congestion.getRto() + " ns");
+			check(sender.resendOverdue(System.nanoTime()) == 0, "the resent packets are not overdue again");
+		}
+		System.out.println("CongestionControlTest passed");
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+}
@@ -0,0 +1,35 @@
+/**
+ * Checks that the stripes of a file start on packet boundaries of the negotiated payload size.
+ *
+ * Run from the project root:
+ *   javac -d out/bench src/*.java bench/*.java
+ *   java -cp out/bench HelperTest
+ */
+public class HelperTest {
+	public static void main(String[] args) {
+		// an MTU-probed payload, far below the default packet content size
+		int payloadSize = 1472 - Constants.PACKET_HEADER_SIZE;
+		checkStripes(10_000_000L, 4, payloadSize);
+		checkStripes(10_000_000L, 3, payloadSize);
+		checkStripes(payloadSize * 7L + 5, 4, payloadSize);
+		checkStripes(100_000_000L, 8, Constants.PACKET_CONTENT_SIZE);
+		System.out.println("HelperTest passed");
+	}
+
+	private static void checkStripes(long size, int stripes, int payloadSize) {
+		check(Helper.stripeOffset(size, stripes, 0, payloadSize) == 0, "the first stripe starts at 0");
+		check(Helper.stripeOffset(size, stripes, stripes, payloadSize) == size, "the last stripe ends at the size");
+		for (int k = 1; k < stripes; k++) {
+			long offset = Helper.stripeOffset(size, stripes, k, payloadSize);
+			check(offset >= Helper.stripeOffset(size, stripes, k - 1, payloadSize), "stripe " + k + " starts after stripe " + (k - 1));
+			check(offset == size || offset % payloadSize == 0,
+					"stripe " + k + " of " + size + " bytes starts at " + offset + ", inside a packet of " + payloadSize);
+		}
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+}
@@ -0,0 +1,196 @@
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Benchmarks of the transfer pipeline: packet (de)serialization, the Helper int codec,
+ * PacketQueue hand-off throughput at several capacities, and end-to-end loopback
+ * transfers of the test_files fixtures through Client.sendFile and the server.
+ *
+ * Every benchmark runs warm-up iterations, then measured iterations, and reports the
+ * throughput (MB/s or Mops/s) and the p50/p99 latency of one iteration.
+ *
+ * Build and run from the project root (a filter keeps only benchmarks whose name contains it):
+ *   javac -d out/bench src/*.java bench/*.java
+ *   java -cp out/bench TransferBenchmark [filter]
+ */
+public class TransferBenchmark {
+	private static final int WARMUP = 5;
+	private static final int ITERATIONS = 20;
+	private static final int PACKETS_PER_ITERATION = 1000;
+	private static final int INTS_PER_ITERATION = 1_000_000;
+	private static final int HAND_OFFS_PER_ITERATION = 200_000;
+	private static final String[] FIXTURES = { "text_small.txt", "mytext.txt", "newtext.txt", "newfile.txt",
+			"largetext.txt", "verylargefile.txt", "text_large.txt", "convertcsv.csv" };
+
+	// results go to the real stdout, the pipeline's own logging is discarded
+	private static final PrintStream results = System.out;
+	// keeps the JIT from eliminating the measured work
+	static volatile long sink;
+
+	interface Iteration {
+		/**
+		 * @return the amount of work done: bytes for MB/s benchmarks, operations otherwise
+		 */
+		long run() throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String filter = args.length > 0 ? args[0] : "";
+		File serverFolder = Files.createTempDirectory("filesync-bench").toFile();
+		System.setProperty("filesync.serverFolder", serverFolder.getPath());
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+		results.printf("%-40s %12s %12s %12s%n", "benchmark", "throughput", "p50 (us)", "p99 (us)");
+		benchmarkPackets(filter);
+		benchmarkHelper(filter);
+		benchmarkQueues(filter);
+		benchmarkTransfers(filter, serverFolder);
+		System.exit(0);
+	}
+
+	private static void benchmarkPackets(String filter) throws Exception {
+		byte[] content = new byte[Constants.MAX_DATAGRAM_SIZE - Constants.PACKET_HEADER_SIZE];
+		Arrays.fill(content, (byte) 'x');
+		byte[] datagram = new Packet(1, content, content.length).packetToByteArray();
+
+		run(filter, "packet.serialize", true, () -> {
+			long bytes = 0;
+			for (int i = 0; i < PACKETS_PER_ITERATION; i++) {
+				bytes += new Packet(i, content, content.length).packetToByteArray().length;
+			}
+			return bytes;
+		});
+		run(filter, "packet.deserialize", true, () -> {
+			long bytes = 0;
+			for (int i = 0; i < PACKETS_PER_ITERATION; i++) {
+				Packet pkt = new Packet(datagram, datagram.length);
+				bytes += pkt.getContentSize() + Constants.PACKET_HEADER_SIZE;
+			}
+			return bytes;
+		});
+		PacketPool pool = new PacketPool(4, false);
+		run(filter, "packet.pooled", true, () -> {
+			long bytes = 0;
+			for (int i = 0; i < PACKETS_PER_ITERATION; i++) {
+				Packet pkt = pool.acquire();
+				pkt.reset(i);
+				pkt.setContent(content);
+				bytes += pkt.getDatagramLength();
+				pkt.release();
+			}
+			return bytes;
+		});
+	}
+
+	private static void benchmarkHelper(String filter) throws Exception {
+		run(filter, "helper.intToByteArray", false, () -> {
+			long sum = 0;
+			for (int i = 0; i < INTS_PER_ITERATION; i++) {
+				sum += Helper.intToByteArray(i)[3];
+			}
+			sink = sum;
+			return INTS_PER_ITERATION;
+		});
+		byte[] bytes = Helper.intToByteArray(123456789);
+		run(filter, "helper.byteArrayToInt", false, () -> {
+			long sum = 0;
+			for (int i = 0; i < INTS_PER_ITERATION; i++) {
+				bytes[3] = (byte) i;
+				sum += Helper.byteArrayToInt(bytes);
+			}
+			sink = sum;
+			return INTS_PER_ITERATION;
+		});
+	}
+
+	private static void benchmarkQueues(String filter) throws Exception {
+		for (String type : new String[] { "monitor", "ring" }) {
+			for (int capacity : new int[] { 1, 6, 64, 1024 }) {
+				PacketQueue queue = type.equals("monitor") ? new PacketBoundedBufferMonitor(capacity)
+						: new SpscPacketRing(capacity);
+				Packet pkt = new Packet(1);
+				run(filter, "queue." + type + ".capacity" + capacity, false, () -> {
+					Thread producer = new Thread(() -> {
+						for (int i = 0; i < HAND_OFFS_PER_ITERATION; i++) {
+							queue.deposit(pkt);
+						}
+					});
+					producer.start();
+					for (int i = 0; i < HAND_OFFS_PER_ITERATION; i++) {
+						queue.withdraw();
+					}
+					producer.join();
+					return HAND_OFFS_PER_ITERATION;
+				});
+			}
+		}
+	}
+
+	private static void benchmarkTransfers(String filter, File serverFolder) throws Exception {
+		if (!"transfer".contains(filter) && !filter.startsWith("transfer")) {
+			return;
+		}
+		ServerSocket serverSocket = new ServerSocket(Constants.SERVER_TCP_PORT);
+		Thread server = new Thread(() -> Server.serve(serverSocket));
+		server.setDaemon(true);
+		server.start();
+
+		File fixtures = new File("test_files");
+		for (String fixture : FIXTURES) {
+			File source = new File(fixtures, fixture);
+			File target = new File(serverFolder, fixture);
+			run(filter, "transfer." + fixture, true, () -> {
+				target.delete();
+				new Client(fixture, fixtures.getPath()).sendFile();
+				// the terminator is acknowledged once it is queued, the writer may still be flushing
+				long deadline = System.currentTimeMillis() + 5000;
+				while (target.length() != source.length()) {
+					if (System.currentTimeMillis() > deadline) {
+						throw new IllegalStateException("incomplete transfer of " + fixture);
+					}
+					Thread.onSpinWait();
+				}
+				return source.length();
+			});
+		}
+	}
+
+	/**
+	 * run one benchmark and print its throughput and per-iteration latency percentiles
+	 */
+	private static void run(String filter, String name, boolean bytes, Iteration iteration) throws Exception {
+		if (!name.contains(filter)) {
+			return;
+		}
+		for (int i = 0; i < WARMUP; i++) {
+			iteration.run();
+		}
+		List<Long> nanos = new ArrayList<>();
+		long work = 0;
+		long total = 0;
+		for (int i = 0; i < ITERATIONS; i++) {
+			long start = System.nanoTime();
+			work += iteration.run();
+			long elapsed = System.nanoTime() - start;
+			nanos.add(elapsed);
+			total += elapsed;
+		}
+		nanos.sort(null);
+		double seconds = total / 1e9;
+		String throughput = bytes ? String.format("%.1f MB/s", work / seconds / (1024 * 1024))
+				: String.format("%.2f Mops/s", work / seconds / 1e6);
+		results.printf("%-40s %12s %12.1f %12.1f%n", name, throughput, percentile(nanos, 50) / 1e3,
+				percentile(nanos, 99) / 1e3);
+	}
+
+	private static long percentile(List<Long> sorted, int percentile) {
+		int rank = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+		return sorted.get(Math.max(0, rank));
+	}
+}
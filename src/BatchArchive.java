@@ -0,0 +1,102 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Many small files packed into one transfer, so they share a single session with one head
+ * packet and one terminator instead of paying for them per file.
+ *
+ * Format: count (4 bytes), then the manifest, a name (writeUTF), a size (8 bytes) and an mtime
+ * (8 bytes) per file, then the content of the files one after the other in manifest order.
+ */
+public class BatchArchive {
+
+	/**
+	 * pack the files that still exist
+	 * @return the number of files packed
+	 */
+	public static int pack(String directory, List<String> fileNames, File archive) throws IOException {
+		List<String> names = new ArrayList<>();
+		List<byte[]> contents = new ArrayList<>();
+		List<Long> mtimes = new ArrayList<>();
+		for (String fileName : fileNames) {
+			try {
+				long mtime = Files.getLastModifiedTime(Paths.get(directory, fileName)).toMillis();
+				contents.add(Files.readAllBytes(Paths.get(directory, fileName)));
+				mtimes.add(mtime);
+				names.add(fileName);
+			} catch (NoSuchFileException e) {
+				// deleted since it was queued
+			}
+		}
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(archive)))) {
+			out.writeInt(names.size());
+			for (int i = 0; i < names.size(); i++) {
+				out.writeUTF(names.get(i));
+				out.writeLong(contents.get(i).length);
+				out.writeLong(mtimes.get(i));
+			}
+			for (byte[] content : contents) {
+				out.write(content);
+			}
+		}
+		return names.size();
+	}
+
+	/**
+	 * write every file of the archive into folder, each replacing its previous version at once
+	 * and keeping the mtime it has on the client
+	 * @return the number of files unpacked
+	 */
+	public static int unpack(File archive, File folder) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(archive)))) {
+			int count = in.readInt();
+			String[] names = new String[count];
+			long[] sizes = new long[count];
+			long[] mtimes = new long[count];
+			for (int i = 0; i < count; i++) {
+				names[i] = in.readUTF();
+				sizes[i] = in.readLong();
+				mtimes[i] = in.readLong();
+			}
+			for (int i = 0; i < count; i++) {
+				File target = Server.resolve(folder, names[i]);
+				Files.createDirectories(target.getParentFile().toPath());
+				// a name of its own: ".name.part" belongs to a resumable upload of the same file
+				File part = File.createTempFile("." + target.getName() + ".", ".part", target.getParentFile());
+				try (FileOutputStream out = new FileOutputStream(part)) {
+					byte[] buffer = new byte[8192];
+					long remaining = sizes[i];
+					while (remaining > 0) {
+						int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+						if (read < 0) {
+							throw new IOException("batch ends inside " + names[i]);
+						}
+						out.write(buffer, 0, read);
+						remaining -= read;
+					}
+				} catch (IOException e) {
+					part.delete();
+					throw e;
+				}
+				Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				target.setLastModified(mtimes[i]);
+				SignatureCache.invalidate(target);
+				ContentIndex.invalidate(target);
+			}
+			return count;
+		}
+	}
+}
@@ -1,44 +1,118 @@
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.util.Scanner;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.StandardSocketOptions;
 import java.io.FileInputStream;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
 
-class FileReader extends Thread {
-	private PacketBoundedBufferMonitor bufferMonitor;
+class FileReader implements Runnable {
+	private PacketQueue bufferMonitor;
+	private PacketPool packetPool;
 	private String fileName;
+	private boolean mapped = false;
+	// byte range of the file to send, length -1 for everything from offset on
+	private long offset = 0;
+	private long length = -1;
+	// compresses every data packet when the transfer negotiated compression
+	private PacketCodec codec = null;
+	// first data packet to send, past 1 when the server already has the start of the file
+	private int resumeIndex = 1;
+	// content bytes per packet, negotiated for the transfer
+	private int payloadSize = Constants.PACKET_CONTENT_SIZE;
+	// name of the file on the server, relative to the synced folder; the path read from by default
+	private String remoteName = null;
+	// digest of the data sent, which the terminator carries to the server
+	private final MessageDigest digest = FileDigest.create();
 	public FileReader() {}
-	public FileReader(PacketBoundedBufferMonitor bm, String fileName) {
+	public FileReader(PacketQueue bm, String fileName) {
+		this(bm, new PacketPool(bm.capacity() + 2, false), fileName);
+	}
+	public FileReader(PacketQueue bm, PacketPool pool, String fileName) {
 		this.bufferMonitor=bm;
+		this.packetPool=pool;
 		this.fileName=fileName;
 	}
+	public FileReader(PacketQueue bm, PacketPool pool, String fileName, boolean mapped) {
+		this(bm, pool, fileName);
+		this.mapped=mapped;
+	}
+	public FileReader(PacketQueue bm, PacketPool pool, String fileName, boolean mapped, long offset, long length) {
+		this(bm, pool, fileName, mapped);
+		this.offset=offset;
+		this.length=length;
+	}
+
+	public void setCodec(PacketCodec codec) {
+		this.codec=codec;
+	}
+
+	public void setResumeIndex(int resumeIndex) {
+		this.resumeIndex=resumeIndex;
+	}
+
+	public void setPayloadSize(int payloadSize) {
+		this.payloadSize=payloadSize;
+	}
+
+	public void setRemoteName(String remoteName) {
+		this.remoteName=remoteName;
+	}
 
 	public void run() {
 		try {
 			File file = new File(fileName);
-			FileInputStream in = new FileInputStream(file);
-			int packetIndex = 0;
-			int readSize = 0;
+			try (FileChannel in = new FileInputStream(file).getChannel()) {
+				int packetIndex = 0;
+				int readSize = 0;
+				if (length < 0) {
+					length = in.size() - offset;
+				}
+				long skipped = Math.min(length, (long) (resumeIndex - 1) * payloadSize);
+				// the server digests what it already has, so the skipped part counts as sent
+				FileDigest.update(digest, in, offset, skipped);
+				offset += skipped;
+				length -= skipped;
+				in.position(offset);
 
-			System.out.println(">> Begin to read a file" + Constants.CRLF);
+				Log.debug(">> Begin to read a file" + Constants.CRLF);
 
-			// Read the file header
-			packetIndex = readFileHeader(packetIndex);
+				// Read the file header
+				packetIndex = readFileHeader(packetIndex);
+				if (resumeIndex > 1) {
+					Log.info(">> Resume from the packet with index " + resumeIndex + Constants.CRLF);
+					packetIndex = resumeIndex;
+				}
 
-			// Read the file content
-			byte[] buf = new byte[Constants.MAX_DATAGRAM_SIZE - 4];
-			readSize = readFileContent(in, buf, packetIndex);
+				// Read the file content
+				readSize = mapped ? mapFileContent(in, packetIndex) : readFileContent(in, packetIndex);
 
-			if (readSize == -1) {
-				Packet pkt = new Packet(-1, "End of reading a file".getBytes(), 0);
-				this.bufferMonitor.deposit(pkt);
-				System.out.println(">> Finish reading the file: " + fileName + Constants.CRLF);
+				if (readSize == -1) {
+					Packet pkt = this.packetPool.acquire();
+					pkt.reset(Constants.TERMINATOR_INDEX);
+					pkt.setContent(digest.digest());
+					this.bufferMonitor.deposit(pkt);
+					Log.info(">> Finish reading the file: " + fileName + Constants.CRLF);
+				}
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -46,112 +120,391 @@ class FileReader extends Thread {
 	}
 
 	private int readFileHeader(int packetIndex) {
-		String fileHead = "fileName:" + fileName;
-		Packet pkt = new Packet(packetIndex, fileHead.getBytes(), fileHead.getBytes().length);
-		System.out.println(Constants.CRLF + ">> Prepare data for the head packet with index: " + pkt.getIndex());
+		String fileHead = "fileName:" + (remoteName != null ? remoteName : fileName);
+		Packet pkt = this.packetPool.acquire();
+		pkt.reset(packetIndex);
+		pkt.setContent(fileHead.getBytes());
+		Log.debug(Constants.CRLF + ">> Prepare data for the head packet with index: " + pkt.getIndex());
 		this.bufferMonitor.deposit(pkt);
 		return packetIndex + 1;
 	}
 
-	private int readFileContent(FileInputStream in, byte[] buf, int packetIndex) throws IOException, IOException {
-		int readSize;
+	private int readFileContent(FileChannel in, int packetIndex) throws IOException {
+		long remaining = length;
 		while (true) {
-			readSize = in.read(buf, 0, buf.length);
+			// read straight into a pooled packet; it comes back to the pool once it has been acknowledged
+			Packet pkt = this.packetPool.acquire();
+			pkt.reset(packetIndex);
+			ByteBuffer buf = pkt.prepareContent();
+			buf.limit((int) Math.min(Constants.PACKET_HEADER_SIZE + payloadSize, Constants.PACKET_HEADER_SIZE + remaining));
+			int readSize = 0;
+			while (buf.hasRemaining() && (readSize = in.read(buf)) != -1) {}
+			int contentSize = buf.position() - Constants.PACKET_HEADER_SIZE;
+			remaining -= contentSize;
+			if (remaining == 0) {
+				readSize = -1;
+			}
+			if (contentSize == 0) {
+				pkt.release();
+				return -1;
+			}
+			pkt.setContentSize(contentSize);
+			FileDigest.update(digest, pkt.getContentBuffer());
+			if (codec != null) {
+				codec.compress(pkt);
+			}
+			if (Log.TRACE) {
+				Log.trace(">> Read from a file for the packet with index " + pkt.getIndex());
+			}
+			this.bufferMonitor.deposit(pkt);
+			packetIndex++;
 			if (readSize == -1) {
 				return -1;
-			} else {
-				Packet pkt = new Packet(packetIndex, buf, readSize);
-				System.out.println(">> Read from a file for the packet with index " + pkt.getIndex());
-				System.out.println(new String(buf, 0, readSize));
+			}
+		}
+	}
+
+	/**
+	 * Map the file and hand out slices of the mapping as packet content, so the data
+	 * goes from the page cache to the socket without passing through a heap array.
+	 * The file is mapped in regions because one mapping cannot exceed 2 GB.
+	 */
+	private int mapFileContent(FileChannel in, int packetIndex) throws IOException {
+		long regionSize = (long) payloadSize * Constants.MAP_REGION_PACKETS;
+		for (long regionStart = 0; regionStart < length; regionStart += regionSize) {
+			MappedByteBuffer region = in.map(FileChannel.MapMode.READ_ONLY, offset + regionStart,
+					Math.min(regionSize, length - regionStart));
+			for (int offset = 0; offset < region.capacity(); offset += payloadSize) {
+				Packet pkt = this.packetPool.acquire();
+				pkt.reset(packetIndex);
+				pkt.setMappedContent(region.slice(offset, Math.min(payloadSize, region.capacity() - offset)));
+				FileDigest.update(digest, pkt.getContentBuffer());
+				if (codec != null) {
+					codec.compress(pkt);
+				}
+				if (Log.TRACE) {
+					Log.trace(">> Map from a file the packet with index " + pkt.getIndex());
+				}
 				this.bufferMonitor.deposit(pkt);
 				packetIndex++;
 			}
 		}
+		return -1;
 	}
 }
 
-class PacketSender extends Thread {
-	private static final AtomicInteger activeThreads = new AtomicInteger(0);
+class PacketSender implements Runnable {
 	private String threadName="PacketSender";
-	private PacketBoundedBufferMonitor bufferMonitor;
-	private DatagramSocket udpSenderSocket;
-	private DatagramPacket udpSenderPacket;
+	private PacketQueue bufferMonitor;
+	private DatagramChannel udpSenderChannel;
+	private Selector selector;
 	private InetAddress senderIp;//local
 	private int senderPort;//local
 	private InetAddress receiverIp;//remote
 	private int receiverPort;//remote
+	private int sessionId;
+
+	// packets that have been sent but not acknowledged yet, in slot index % WINDOW_SIZE
+	private final Packet[] window = new Packet[Constants.WINDOW_SIZE];
+	private int inFlight = 0;
+	private int nextIndex = 0;
+	private Packet terminator = null;
+	private int resumeIndex = 1;
+	private long lastAckAt = 0;
+	private long startedAt = 0;
+	private long bytesSent = 0;
+	private final CongestionControl congestion = new CongestionControl(Constants.WINDOW_SIZE);
 
 	public PacketSender() {}
-	public PacketSender(PacketBoundedBufferMonitor bm, InetAddress senderIp,int senderPort, InetAddress receiverIp,int receiverPort) {
+	public PacketSender(PacketQueue bm, InetAddress senderIp,int senderPort, InetAddress receiverIp,int receiverPort) {
 		this.bufferMonitor=bm;
 		this.senderIp=senderIp;
 		this.senderPort=senderPort;
 		this.receiverIp=receiverIp;
 		this.receiverPort=receiverPort;
 	}
+	public PacketSender(PacketQueue bm, DatagramChannel udpSenderChannel, InetAddress receiverIp,int receiverPort,int sessionId) {
+		this.bufferMonitor=bm;
+		this.udpSenderChannel=udpSenderChannel;
+		this.receiverIp=receiverIp;
+		this.receiverPort=receiverPort;
+		this.sessionId=sessionId;
+	}
+
+	/**
+	 * @param resumeIndex the data packet that follows the head packet
+	 */
+	public void setResumeIndex(int resumeIndex) {
+		this.resumeIndex=resumeIndex;
+	}
+
+	public CongestionControl getCongestionControl() {
+		return congestion;
+	}
 
+	/**
+	 * Selective-repeat sender: keeps up to the congestion window (at most Constants.WINDOW_SIZE)
+	 * packets in flight, retransmits each one on its own adaptive timer and slides on
+	 * (cumulative or selective) ACKs.
+	 * The terminator packet (-1) is only sent once every data packet has been acknowledged.
+	 */
 	public void run() {
-		activeThreads.incrementAndGet();
-		byte[] buf=new byte[Constants.MAX_DATAGRAM_SIZE];
-		byte []receiveBuf=new byte[1024];
+		ByteBuffer ackBuffer=ByteBuffer.allocateDirect(Constants.ACK_SIZE);
+		int terminatorRetries=0;
 		try {
-			udpSenderSocket=new DatagramSocket(senderPort,senderIp);
-
-			udpSenderPacket=new DatagramPacket(buf,Constants.MAX_DATAGRAM_SIZE,receiverIp,receiverPort);
+			if (udpSenderChannel==null) {
+				udpSenderChannel=DatagramChannel.open().bind(new InetSocketAddress(senderIp,senderPort));
+			}
+			udpSenderChannel.setOption(StandardSocketOptions.SO_SNDBUF,Constants.SOCKET_BUFFER_SIZE);
+			udpSenderChannel.connect(new InetSocketAddress(receiverIp,receiverPort));
+			udpSenderChannel.configureBlocking(false);
+			selector=Selector.open();
+			udpSenderChannel.register(selector,SelectionKey.OP_READ);
 
-			System.out.println(">> Begin to send packets"+Constants.CRLF);
+			Log.debug(">> Begin to send packets"+Constants.CRLF);
+			lastAckAt=System.currentTimeMillis();
+			startedAt=System.nanoTime();
 			while(true) {
-				//withdraw an item
-				Packet pktS=this.bufferMonitor.withdraw();
-				buf=new byte[Constants.MAX_DATAGRAM_SIZE];
-				buf=pktS.packetToByteArray();
-				udpSenderPacket.setData(buf,0,pktS.getContentSize()+4);
-				udpSenderSocket.send(udpSenderPacket);
-
-				System.out.println(">> Send the packet with index "+pktS.getIndex());
-
-				// get an ACK packet
-				while(true){
-					try {
-						udpSenderSocket.setSoTimeout(100);
-						udpSenderPacket.setData(receiveBuf,0,receiveBuf.length);
-						udpSenderSocket.receive(udpSenderPacket);
-					}catch(SocketTimeoutException e) {
-						// resend the packet if the corresponding ACK packet is not received
-						System.out.println(">> Resend the packet with index "+pktS.getIndex()+Constants.CRLF);
-						udpSenderPacket.setData(buf,0,pktS.getContentSize()+4);
-						udpSenderSocket.send(udpSenderPacket);
-					}
-					int index=Helper.byteArrayToInt(Helper.get4Bytes(udpSenderPacket.getData()));
-					if (index==pktS.getIndex()) {
-						System.out.println("ACK for the packet with index "+index+Constants.CRLF);
+				// fill the window with new packets, never further than WINDOW_SIZE past the oldest unacknowledged one
+				while (terminator==null && inFlight<congestion.getWindow() && window[slot(nextIndex)]==null) {
+					// only block for the next packet when there is nothing to wait for
+					Packet pktS=inFlight==0 ? this.bufferMonitor.withdraw() : this.bufferMonitor.tryWithdraw();
+					if (pktS==null) {break;}
+					pktS.setSessionId(sessionId);
+					pktS.seal();
+					if (pktS.getIndex()==Constants.TERMINATOR_INDEX) {
+						terminator=pktS;
 						break;
 					}
+					sendNew(pktS);
 				}
 
-				if (pktS.getIndex()==-1) {
-					System.out.println(">> Finish sending packets.");
-					break;
+				// every data packet is acknowledged: send the terminator
+				if (inFlight==0 && terminator!=null && terminator.getTransmissions()==0) {
+					send(terminator);
 				}
 
+				// get the ACK packets, waiting no longer than the earliest retransmit timer
+				boolean done=false;
+				selector.select(nextTimeout());
+				selector.selectedKeys().clear();
+				while (!done && readAck(ackBuffer)) {
+					done=handleAck(ackBuffer);
+				}
+				if (done) {
+					Metrics.SEND_RATE.record((long) (bytesSent/1024.0/((System.nanoTime()-startedAt)/1e9)));
+					Log.info(">> Finish sending packets: "+congestion+Constants.CRLF);
+					break;
+				}
 
-				//sleep(10);
-
+				// resend the packets whose ACK is overdue
+				if (System.currentTimeMillis()-lastAckAt>Constants.TRANSFER_IDLE_TIMEOUT_MS) {
+					// the server is gone; it keeps what it received so the next attempt can resume
+					Log.warn(">> No ACK for "+Constants.TRANSFER_IDLE_TIMEOUT_MS+" ms, giving up.");
+					drain();
+					break;
+				}
+				long now=System.nanoTime();
+				if (inFlight==0 && terminator!=null && now-terminator.getSentAt()>=congestion.getRto()) {
+					if (++terminatorRetries>Constants.MAX_TERMINATOR_RETRIES) {
+						// the receiver has everything but its last ACK keeps getting lost
+						Log.warn(">> No ACK for the last packet, giving up.");
+						break;
+					}
+					Log.debug(">> Resend the packet with index -1"+Constants.CRLF);
+					send(terminator);
+				}
+				resendOverdue(now);
 			}//end of while
 
 		}catch(Exception e) {e.printStackTrace();}
 		finally {
-			if (activeThreads.decrementAndGet() == 0 && udpSenderSocket != null) {
-				udpSenderSocket.close();
+			if (terminator!=null) {
+				terminator.release();
 			}
+			try {
+				if (selector!=null) {
+					selector.close();
+				}
+				if (udpSenderChannel != null) {
+					udpSenderChannel.close();
+				}
+			}catch(IOException e) {e.printStackTrace();}
 		}
 	}
 
-	private void sleep(int i) {
+	/**
+	 * put a data packet into the window and send it for the first time
+	 */
+	void sendNew(Packet pkt) throws IOException {
+		window[slot(pkt.getIndex())]=pkt;
+		inFlight++;
+		nextIndex=pkt.getIndex()==0 ? resumeIndex : pkt.getIndex()+1;
+		send(pkt);
+	}
+
+	/**
+	 * Resend the packets whose ACK is overdue. However many packets one expiry of the timer
+	 * covers, the RTO and the window are only backed off once for it.
+	 * @return the number of packets resent
+	 */
+	int resendOverdue(long now) throws IOException {
+		long rto=congestion.getRto();
+		Packet oldest=null;
+		for (Packet pkt : window) {
+			if (pkt!=null && now-pkt.getSentAt()>=rto && (oldest==null || pkt.getSentAt()<oldest.getSentAt())) {
+				oldest=pkt;
+			}
+		}
+		if (oldest==null) {
+			return 0;
+		}
+		congestion.onTimeout(oldest.getIndex(),nextIndex);
+		int resent=0;
+		for (Packet pkt : window) {
+			if (pkt!=null && now-pkt.getSentAt()>=rto) {
+				if (Log.DEBUG) {
+					Log.debug(">> Resend the packet with index "+pkt.getIndex()+Constants.CRLF);
+				}
+				send(pkt);
+				resent++;
+			}
+		}
+		return resent;
+	}
+
+	/**
+	 * take what the reader still queues so that it can run to the end of the file
+	 */
+	private void drain() {
+		while (terminator==null) {
+			Packet pkt=this.bufferMonitor.withdraw();
+			if (pkt.getIndex()==Constants.TERMINATOR_INDEX) {
+				terminator=pkt;
+			} else {
+				pkt.release();
+			}
+		}
+	}
+
+	private void send(Packet pkt) throws IOException {
+		// a full send buffer drops the datagram, its retransmit timer covers it like a loss
+		long sent=pkt.sendTo(udpSenderChannel);
+		pkt.setSentAt(System.nanoTime());
+		boolean retransmission=pkt.countTransmission()>1;
+		congestion.onSend(retransmission);
+		Metrics.PACKETS_SENT.increment();
+		Metrics.BYTES_SENT.add(sent);
+		if (retransmission) {
+			Metrics.PACKETS_RETRANSMITTED.increment();
+		} else {
+			bytesSent+=sent;
+		}
+		if (Log.TRACE) {
+			Log.trace(">> Send the packet with index "+pkt.getIndex());
+		}
+	}
+
+	/**
+	 * @return false if no ACK is waiting
+	 */
+	private boolean readAck(ByteBuffer ackBuffer) throws IOException {
+		ackBuffer.clear();
 		try {
-			Thread.currentThread().sleep(100);
-		}catch(Exception e) {e.printStackTrace();}
+			if (udpSenderChannel.read(ackBuffer)<=0) {
+				return false;
+			}
+		}catch(PortUnreachableException e) {
+			// the receiver is not listening (yet), retransmissions will retry
+			return false;
+		}
+		ackBuffer.flip();
+		return true;
+	}
 
+	/**
+	 * An ACK carries the index of the packet it acknowledges followed by the next index
+	 * the receiver expects in order, so every packet below it is acknowledged too.
+	 * @return true if the terminator was acknowledged
+	 */
+	private boolean handleAck(ByteBuffer ackBuffer) {
+		if (ackBuffer.remaining()<4) {return false;}
+		lastAckAt=System.currentTimeMillis();
+		int index=ackBuffer.getInt(0);
+		if (Log.TRACE) {
+			Log.trace("ACK for the packet with index "+index+Constants.CRLF);
+		}
+		if (index==Constants.NACK_INDEX && ackBuffer.remaining()>=Constants.ACK_SIZE) {
+			resendDamaged(ackBuffer.getInt(4));
+			return false;
+		}
+		if (index==Constants.TERMINATOR_INDEX) {
+			return terminator!=null;
+		}
+		if (index<0) {return false;}
+		Packet acked=window[slot(index)];
+		if (acked!=null && acked.getIndex()==index) {
+			// only a packet sent once tells which transmission the ACK is for
+			long rtt=acked.getTransmissions()==1 ? System.nanoTime()-acked.getSentAt() : -1;
+			congestion.onAck(rtt);
+			if (rtt>=0) {
+				Metrics.ACK_RTT_MICROS.record(rtt/1000);
+			}
+			acknowledge(acked,index+1);
+		} else {
+			// the packet was acknowledged already
+			Metrics.ACKS_DUPLICATE.increment();
+		}
+		if (ackBuffer.remaining()>=Constants.ACK_SIZE) {
+			int cumulative=ackBuffer.getInt(4);
+			for (Packet pkt : window) {
+				if (pkt!=null && pkt.getIndex()<cumulative) {
+					congestion.onAck(-1);
+				}
+				acknowledge(pkt,cumulative);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * the receiver got the packet with this index but its checksum did not match: send it again now
+	 */
+	private void resendDamaged(int index) {
+		try {
+			Packet pkt=index==Constants.TERMINATOR_INDEX ? terminator : index>=0 ? window[slot(index)] : null;
+			if (pkt!=null && pkt.getIndex()==index && pkt.getTransmissions()>0) {
+				Log.debug(">> Resend the damaged packet with index "+index+Constants.CRLF);
+				send(pkt);
+			}
+		}catch(IOException e) {e.printStackTrace();}
+	}
+
+	/**
+	 * free the window slot of pkt if its index is below the given bound
+	 */
+	private void acknowledge(Packet pkt, int below) {
+		if (pkt!=null && pkt.getIndex()<below) {
+			window[slot(pkt.getIndex())]=null;
+			inFlight--;
+			pkt.release();
+		}
+	}
+
+	private int nextTimeout() {
+		long oldest=Long.MAX_VALUE;
+		for (Packet pkt : window) {
+			if (pkt!=null) {oldest=Math.min(oldest,pkt.getSentAt());}
+		}
+		if (inFlight==0 && terminator!=null) {oldest=terminator.getSentAt();}
+		if (oldest==Long.MAX_VALUE) {return Constants.RETRANSMIT_TIMEOUT_MS;}
+		long remaining=oldest+congestion.getRto()-System.nanoTime();
+		// round up: select(0) would wait forever
+		return (int) Math.max(1,(remaining+999999)/1000000);
+	}
+
+	private static int slot(int index) {
+		return index % Constants.WINDOW_SIZE;
 	}
 
 }
@@ -162,10 +515,114 @@ class Constants {
 
 	public static final int SERVER_UDP_PORT = 16667;
 	public static final int SERVER_TCP_PORT = 16657;
+	// loopback port the server serves its metrics on as text, 0 for JMX only
+	public static final int METRICS_PORT = Integer.getInteger("filesync.metricsPort", 16658);
+
+	// where the server stores the synced files
+	public static final String SERVER_FOLDER = System.getProperty("filesync.serverFolder", "serverFileHolder");
 
 	public static final int MAX_DATAGRAM_SIZE = 65500;
+	// largest datagram sent or received, the size of the receive buffers; transfers may negotiate smaller packets
+	public static final int DATAGRAM_SIZE = Math.min(MAX_DATAGRAM_SIZE, Integer.getInteger("filesync.datagramSize", MAX_DATAGRAM_SIZE));
+	// probe for the largest datagram that is not fragmented on the way to the server
+	public static final boolean MTU_PROBE = Boolean.parseBoolean(System.getProperty("filesync.mtuProbe", "true"));
+	public static final long MTU_PROBE_CACHE_MS = 10 * 60 * 1000;
+	// ask the server's content index before sending a file, and skip it if the server has the same content
+	public static final boolean SKIP_UNCHANGED = Boolean.parseBoolean(System.getProperty("filesync.skipUnchanged", "true"));
+	// how long the server lets changes to its content index gather before saving it
+	public static final long INDEX_SAVE_DELAY_MS = 1000;
+	// compare the watched tree with the server's listing when the monitor starts
+	public static final boolean RECONCILE = Boolean.parseBoolean(System.getProperty("filesync.reconcile", "true"));
+	// also delete what only the server has; off by default since other clients may share the server folder
+	public static final boolean RECONCILE_DELETE = Boolean.parseBoolean(System.getProperty("filesync.reconcileDelete", "false"));
+	// threads that list a directory tree, more than the cores since they mostly wait for stat calls
+	public static final int SCAN_THREADS = Integer.getInteger("filesync.scanThreads",
+			Math.max(8, 2 * Runtime.getRuntime().availableProcessors()));
+	// characters of a listing the server sends at once
+	public static final int LIST_CHUNK_SIZE = 64 * 1024;
+	// session id + packet index + CRC32C
+	public static final int PACKET_HEADER_SIZE = 12;
+	// content of every packet but the last unless the transfer negotiates another payload size,
+	// so packet i starts at offset (i-1)*PACKET_CONTENT_SIZE in the file
+	public static final int PACKET_CONTENT_SIZE = MAX_DATAGRAM_SIZE - PACKET_HEADER_SIZE;
+
+	// send files of at least MAPPED_TRANSFER_THRESHOLD bytes from a memory mapping
+	public static final boolean MAPPED_TRANSFER = Boolean.parseBoolean(System.getProperty("filesync.mmap", "true"));
+	public static final long MAPPED_TRANSFER_THRESHOLD = Long.getLong("filesync.mmapThreshold", 1024 * 1024);
+	// packets per mapped region, about 1 GB
+	public static final int MAP_REGION_PACKETS = 16384;
+
+	// split files of at least STRIPE_THRESHOLD bytes into TRANSFER_STREAMS byte ranges sent in parallel
+	public static final int TRANSFER_STREAMS = Integer.getInteger("filesync.streams",
+			Math.min(4, Runtime.getRuntime().availableProcessors()));
+	public static final long STRIPE_THRESHOLD = Long.getLong("filesync.stripeThreshold", 64L * 1024 * 1024);
+	// the most stripes the server accepts for one file
+	public static final int MAX_TRANSFER_STREAMS = 16;
 
-	public static final int MONITOR_BUFFER_SIZE=6;
+	// on ENTRY_MODIFY send files of at least DELTA_THRESHOLD bytes as a delta against the server's copy
+	public static final boolean DELTA_SYNC = Boolean.parseBoolean(System.getProperty("filesync.delta", "true"));
+	public static final long DELTA_THRESHOLD = Long.getLong("filesync.deltaThreshold", 64 * 1024);
+
+	// events for a path are merged until it has been quiet, and its size and mtime unchanged, for this long
+	public static final long QUIET_WINDOW_MS = Long.getLong("filesync.quietWindowMs", 500);
+	// a deleted directory that shows up again elsewhere in the tree within this window was moved
+	public static final long RENAME_WINDOW_MS = Long.getLong("filesync.renameWindowMs", 500);
+	// syncs run at once by a FileMonitor, and syncs queued behind them before the monitor holds new ones back
+	public static final int SYNC_CONCURRENCY = Integer.getInteger("filesync.syncConcurrency", 4);
+	public static final int SYNC_QUEUE_LIMIT = Integer.getInteger("filesync.syncQueueLimit", 256);
+	// a sync that found the queue full is offered again after this long
+	public static final long SYNC_RETRY_MS = Long.getLong("filesync.syncRetryMs", 50);
+	// settled files under BATCH_THRESHOLD bytes are sent together, up to BATCH_MAX_FILES or BATCH_MAX_BYTES per batch
+	public static final long BATCH_THRESHOLD = Long.getLong("filesync.batchThreshold", 64 * 1024);
+	public static final int BATCH_MAX_FILES = Integer.getInteger("filesync.batchMaxFiles", 256);
+	public static final long BATCH_MAX_BYTES = 4 * 1024 * 1024;
+	public static final long BATCH_LINGER_MS = 50;
+	// optional per-packet deflate, skipped for files whose sampled entropy is above COMPRESSION_MAX_ENTROPY bits per byte
+	public static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("filesync.compress", "false"));
+	public static final int COMPRESSION_LEVEL = Integer.getInteger("filesync.compressLevel", 1);
+	public static final double COMPRESSION_MAX_ENTROPY = 7.5;
+	// a transfer without any packet or ACK for this long is given up and can be resumed later
+	public static final long TRANSFER_IDLE_TIMEOUT_MS = Long.getLong("filesync.idleTimeoutMs", 30000);
+	// packets written between two saves of the journal of a resumable transfer
+	public static final int JOURNAL_INTERVAL = 256;
+	// packet indexes below 0 are control packets, each with a value of its own:
+	// the last packet of a transfer, which carries the digest of the file
+	public static final int TERMINATOR_INDEX = -1;
+	// packet index that tells a file writer its transfer was abandoned
+	public static final int ABORT_INDEX = -2;
+	// index of an ACK that asks for a damaged packet again, the packet index follows it
+	public static final int NACK_INDEX = -3;
+	// index of an MTU probe and of its reply, the number of bytes that arrived follows it
+	public static final int PROBE_INDEX = -4;
+	// a FileMonitor sends all of its requests over one persistent, multiplexed connection
+	public static final boolean CONTROL_CHANNEL = Boolean.parseBoolean(System.getProperty("filesync.controlChannel", "true"));
+
+	public static final int MONITOR_BUFFER_SIZE=Integer.getInteger("filesync.queueCapacity", 6);
+	// "ring" for the lock-free SpscPacketRing, "monitor" for PacketBoundedBufferMonitor
+	public static final String QUEUE_TYPE = System.getProperty("filesync.queue", "ring");
+	// "auto", "virtual" or "shared": what the transfer pipelines run on, see TransferExecutor
+	public static final String EXECUTOR = System.getProperty("filesync.executor", TransferExecutor.AUTO);
+
+	// number of unacknowledged packets the sender keeps in flight
+	public static final int WINDOW_SIZE = Integer.getInteger("filesync.windowSize", 32);
+	// initial retransmission timeout, adapted to the measured RTT within [MIN_RTO_MS, MAX_RTO_MS]
+	public static final int RETRANSMIT_TIMEOUT_MS = Integer.getInteger("filesync.retransmitTimeout", 100);
+	public static final long MIN_RTO_MS = Long.getLong("filesync.minRto", 5);
+	public static final long MAX_RTO_MS = Long.getLong("filesync.maxRto", 3000);
+	// congestion window a transfer starts with, in packets
+	public static final int INITIAL_CWND = Integer.getInteger("filesync.initialCwnd", 10);
+	public static final int MAX_TERMINATOR_RETRIES = 50;
+	// ACK: acknowledged index + next index expected in order
+	public static final int ACK_SIZE = 8;
+	public static final int SOCKET_BUFFER_SIZE = WINDOW_SIZE * MAX_DATAGRAM_SIZE;
+
+	// receive every upload on one shared UDP port, demultiplexed by session id
+	public static final boolean SHARED_UDP_RECEIVER = Boolean.parseBoolean(System.getProperty("filesync.sharedReceiver", "true"));
+	public static final int RECEIVE_BUFFER_POOL_SIZE = 256;
+	// direct memory the shared receive pool may take, a session that does not fit is refused
+	public static final long RECEIVE_POOL_MAX_BYTES = Long.getLong("filesync.receivePoolMaxBytes", 256L * 1024 * 1024);
+	// how long a finished session is kept around to acknowledge a retransmitted terminator
+	public static final int SESSION_LINGER_MS = 5000;
 
 	public static final String CRLF = "" + "\r\n";
 
@@ -176,57 +633,381 @@ public  class Client {
 	private String fileName;
 	private String directory;
 //	private InetAddress serverIp;
+	// requests go through this connection when set, otherwise each of them opens its own
+	private ControlChannel control;
 
 	public Client(String fileName, String directory) {
 		this.fileName = fileName;
 		this.directory = directory;
 	}
 
+	public Client(String fileName, String directory, ControlChannel control) {
+		this(fileName, directory);
+		this.control = control;
+	}
+
 	public void sendFile() {
 
 		String fullFileName=directory+File.separator+fileName;
+		File file=new File(fullFileName);
+		if (!file.exists()){
+			Log.warn("File does not exist");
+			return;
+		}
+		if (Constants.SKIP_UNCHANGED && isUnchangedOnServer(file)) {
+			return;
+		}
+		transfer(file,"");
+	}
+
+	/**
+	 * Send only what changed since the server's copy: fetch the block signature of that copy,
+	 * encode the file as literal data and block references, and send the delta for the server
+	 * to patch its copy with. Falls back to sending the whole file, without asking the server
+	 * about it again, if the server has no copy or the delta would not be smaller, and after
+	 * the delta if the patched copy is not this version of the file.
+	 */
+	public void sendChanges() {
+		File file=new File(directory+File.separator+fileName);
+		if (!Constants.DELTA_SYNC || !file.isFile() || file.length()<Constants.DELTA_THRESHOLD) {
+			sendFile();
+			return;
+		}
+		if (Constants.SKIP_UNCHANGED && isUnchangedOnServer(file)) {
+			return;
+		}
+		File delta=null;
 		try {
-			File file=new File(fullFileName);
-			if (!file.exists()){
-				System.out.println("File does not exist");
+			BlockSignature signature=fetchSignature();
+			if (signature==null) {
+				transfer(file,"");
+				return;
+			}
+			delta=File.createTempFile("filesync",".delta");
+			long literalBytes=DeltaEncoder.encode(file,signature,delta);
+			Log.info(">> Delta of "+fileName+": "+literalBytes+" of "+file.length()+" bytes changed"+Constants.CRLF);
+			if (delta.length()>=file.length()) {
+				transfer(file,"");
 				return;
 			}
+			// the server checks the patched file against the digest and keeps its old copy if they differ
+			transfer(delta," # delta:"+signature.getBlockSize()+" # mtime:"+file.lastModified()
+					+" # hash:"+FileDigest.toHex(FileDigest.of(file)));
+			if (!isUnchangedOnServer(file)) {
+				Log.warn(">> The server did not take the delta of "+fileName+", sending it whole"+Constants.CRLF);
+				transfer(file,"");
+			}
+		}catch(IOException e) {
+			e.printStackTrace();
+			transfer(file,"");
+		}finally {
+			if (delta!=null) {
+				delta.delete();
+			}
+		}
+	}
+
+	/**
+	 * Send small files as one batch: they are packed into an archive with a manifest up front
+	 * and sent in a single session, which the server unpacks into its folder. The files the
+	 * server already has are left out, as sendFile does for a single one.
+	 */
+	public static void sendBatch(String directory,List<String> fileNames,ControlChannel control) {
+		if (Constants.SKIP_UNCHANGED) {
+			List<String> changed=new ArrayList<>(fileNames.size());
+			for (String name : fileNames) {
+				File file=new File(directory+File.separator+name);
+				if (!file.isFile() || !new Client(name,directory,control).isUnchangedOnServer(file)) {
+					changed.add(name);
+				}
+			}
+			if (changed.isEmpty()) {
+				return;
+			}
+			fileNames=changed;
+		}
+		File archive=null;
+		try {
+			archive=File.createTempFile("filesync",".batch");
+			int count=BatchArchive.pack(directory,fileNames,archive);
+			if (count==0) {
+				return;
+			}
+			Log.info(">> Batch of "+count+" files, "+archive.length()+" bytes"+Constants.CRLF);
+			new Client(archive.getName(),directory,control).transfer(archive," # batch:"+count);
+		}catch(IOException e) {
+			e.printStackTrace();
+		}finally {
+			if (archive!=null) {
+				archive.delete();
+			}
+		}
+	}
+
+	/**
+	 * Ask the server's content index about its copy of the file. The copy is the same if it has
+	 * the same size and mtime (the server keeps the mtime of the files it receives whole), or the
+	 * same size and digest, which covers a touch or a save without changes.
+	 */
+	public boolean isUnchangedOnServer(File file) {
+		try {
+			String request="STAT REQUEST # "+fileName;
+			String line;
+			if (control!=null) {
+				Log.info(Constants.CRLF+">> Request:"+request);
+				line=getResponseLine(control.request(ControlChannel.STAT,fileName,0,""),"STAT REQUEST");
+			} else {
+				InetAddress serverIp=InetAddress.getByName("localhost");
+				try (Socket tcpSocket=new Socket(serverIp, Constants.SERVER_TCP_PORT)) {
+					PrintWriter outputSocket=new PrintWriter(tcpSocket.getOutputStream(), true);
+					outputSocket.println(request+Constants.CRLF+"STOP");
+					Log.info(Constants.CRLF+">> Request:"+request);
+					Scanner inputSocket=new Scanner(tcpSocket.getInputStream());
+					line="";
+					while (inputSocket.hasNextLine() && !(line=inputSocket.nextLine()).startsWith("STAT REQUEST")) {}
+					Log.info(">> Response:"+line+Constants.CRLF);
+				}
+			}
+			if (!line.startsWith("STAT REQUEST OK") || Long.parseLong(Helper.getOption(line,"size",1))!=file.length()) {
+				return false;
+			}
+			if (Long.parseLong(Helper.getOption(line,"mtime",1))!=file.lastModified()
+					&& !FileDigest.toHex(FileDigest.of(file)).equals(Helper.getOption(line,"hash",1))) {
+				return false;
+			}
+			Log.info(">> The server already has this version of "+fileName+Constants.CRLF);
+			return true;
+		}catch(IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * ask the server for the size and mtime of every file it has, in one request
+	 * @return the files by their path relative to the server folder, null if the server did not answer
+	 */
+	public static Map<String,FileState> fetchListing(ControlChannel control) throws IOException {
+		String request="LIST REQUEST";
+		Log.info(Constants.CRLF+">> Request:"+request);
+		if (control!=null) {
+			return readListing(new BufferedReader(new StringReader(control.requestAll(ControlChannel.LIST,""))));
+		}
+		InetAddress serverIp=InetAddress.getByName("localhost");
+		try (Socket tcpSocket=new Socket(serverIp, Constants.SERVER_TCP_PORT)) {
+			PrintWriter outputSocket=new PrintWriter(tcpSocket.getOutputStream(), true);
+			outputSocket.println(request+Constants.CRLF+"STOP");
+			return readListing(new BufferedReader(new InputStreamReader(tcpSocket.getInputStream(),StandardCharsets.UTF_8)));
+		}
+	}
+
+	/**
+	 * read the listing line by line, a Scanner is too slow for hundreds of thousands of them
+	 */
+	private static Map<String,FileState> readListing(BufferedReader input) throws IOException {
+		String line="";
+		while (line!=null && !line.startsWith("LIST REQUEST")) {line=input.readLine();}
+		Log.info(">> Response:"+line+Constants.CRLF);
+		if (line==null || !line.startsWith("LIST REQUEST OK")) {
+			return null;
+		}
+		Map<String,FileState> files=new HashMap<>(2*Integer.parseInt(Helper.getOption(line,"files",1)));
+		while ((line=input.readLine())!=null && !line.equals("STOP")) {
+			if (line.isEmpty()) {continue;}
+			int size=line.indexOf(' ');
+			int mtime=line.indexOf(' ',size+1);
+			files.put(line.substring(mtime+1),new FileState(Long.parseLong(line,0,size,10),Long.parseLong(line,size+1,mtime,10)));
+		}
+		return files;
+	}
+
+	/**
+	 * ask the server for the block signature of its copy of the file
+	 * @return null if the server has no copy
+	 */
+	public BlockSignature fetchSignature() throws IOException {
+		String request="SIGNATURE REQUEST # "+fileName;
+		if (control!=null) {
+			Log.info(Constants.CRLF+">> Request:"+request);
+			return readSignature(new Scanner(control.request(ControlChannel.SIGNATURE,fileName,0,"")));
+		}
+		InetAddress serverIp=InetAddress.getByName("localhost");
+		try (Socket tcpSocket=new Socket(serverIp, Constants.SERVER_TCP_PORT)) {
+			PrintWriter outputSocket=new PrintWriter(tcpSocket.getOutputStream(), true);
+			outputSocket.println(request+Constants.CRLF+"STOP");
+			Log.info(Constants.CRLF+">> Request:"+request);
+			return readSignature(new Scanner(tcpSocket.getInputStream()));
+		}
+	}
+
+	private static BlockSignature readSignature(Scanner inputSocket) {
+		if (!inputSocket.hasNextLine()) {
+			return null;
+		}
+		String line=inputSocket.nextLine();
+		while (line.isEmpty()) {line=inputSocket.nextLine();}
+		Log.info(">> Response:"+line+Constants.CRLF);
+		if (!line.startsWith("SIGNATURE REQUEST OK")) {
+			return null;
+		}
+		int blockSize=Integer.parseInt(Helper.getOption(line,"blockSize",1));
+		long size=Long.parseLong(Helper.getOption(line,"size",1));
+		int blocks=Integer.parseInt(Helper.getOption(line,"blocks",1));
+		int[] weak=new int[blocks];
+		byte[][] strong=new byte[blocks][];
+		for (int i=0; i<blocks; i++) {
+			BlockSignature.parseLine(inputSocket.nextLine(),i,weak,strong);
+		}
+		return new BlockSignature(blockSize,size,weak,strong);
+	}
+
+	/**
+	 * send the content of file to the server under this client's file name
+	 * @param extraOptions request options such as " # delta:4096"
+	 */
+	private void transfer(File file,String extraOptions) {
+		String fullFileName=file.getPath();
+		// closed here until the sender of the first stripe takes it over
+		DatagramChannel udpChannel=null;
+		boolean handedOver=false;
+		try {
 			InetAddress serverIp=InetAddress.getByName("localhost");			
-			Socket tcpSocket = new Socket(serverIp, Constants.SERVER_TCP_PORT);
 			
+			// bind an ephemeral UDP port so that concurrent transfers never collide
+			InetAddress senderIp=InetAddress.getByName("localhost");			
+			udpChannel=DatagramChannel.open().bind(new InetSocketAddress(senderIp,0));
+			int udpPort=((InetSocketAddress) udpChannel.getLocalAddress()).getPort();
+
+			// a mapped file is sent in any order: the server writes every packet at its own offset
+			boolean mapped=Constants.MAPPED_TRANSFER && file.length()>=Constants.MAPPED_TRANSFER_THRESHOLD;
+			String options=(mapped ? " # order:any" : "")+extraOptions;
+			// a large file is split into byte ranges that are sent in parallel, each on its own session
+			boolean striped=Constants.TRANSFER_STREAMS>1 && file.length()>=Constants.STRIPE_THRESHOLD && extraOptions.isEmpty();
+			if (striped) {
+				options+=" # stripes:"+Constants.TRANSFER_STREAMS;
+			}
+			// the server needs the size to tell compressed packets from raw ones
+			boolean compress=Constants.COMPRESSION && PacketCodec.worthCompressing(file);
+			if (compress) {
+				options+=" # compress:"+PacketCodec.DEFLATE;
+			}
+			// a whole file names its version so that the server can resume a broken transfer of it
+			options+=" # size:"+file.length();
+			// the largest packets that reach the server without being fragmented
+			if (Constants.MTU_PROBE && Constants.SHARED_UDP_RECEIVER) {
+				options+=" # payload:"+MtuProbe.payloadSize(new InetSocketAddress(serverIp,Constants.SERVER_UDP_PORT));
+			} else if (Constants.DATAGRAM_SIZE!=Constants.MAX_DATAGRAM_SIZE) {
+				options+=" # payload:"+(Constants.DATAGRAM_SIZE-Constants.PACKET_HEADER_SIZE);
+			}
+			if (extraOptions.isEmpty()) {
+				options+=" # mtime:"+file.lastModified();
+			}
+
 			// get the port number from the server that will receive data through UDP datagrams
 			String action="SEND REQUEST";
-		    int serverPort=getPortFromServer(tcpSocket,action,fileName,Constants.CLIENT_UDP_PORT);
-			if (serverPort==0) {return;}			
+			String response;
+			if (control!=null) {
+				Log.info(Constants.CRLF+">> Request:"+action+" # "+fileName+" # "+udpPort+options);
+				response=getResponseLine(control.request(ControlChannel.SEND,fileName,udpPort,options),action);
+			} else {
+				Socket tcpSocket = new Socket(serverIp, Constants.SERVER_TCP_PORT);
+				response=getResponseFromServer(tcpSocket,action,fileName,udpPort,options);
+			}
+		    int serverPort=getPortFromResponse(response);
+			if (serverPort==0) {
+				return;
+			}			
 			
+			// the server may grant fewer stripes than asked for, the first session id is followed by the others
+			int stripes=Math.max(1,getOptionFromResponse(response,"stripes"));
+			int sessionId=getOptionFromResponse(response,"session");
+			// the server may also turn compression down
+			boolean compressed=PacketCodec.DEFLATE.equals(Helper.getOption(response,"compress",1));
+			// the first packet every stripe has to send, when the server has the start of it
+			String resume=Helper.getOption(response,"resume",1);
+			String[] resumeIndexes=resume==null ? new String[0] : resume.split(",");
+			int payloadSize=getOptionFromResponse(response,"payload");
+			if (payloadSize==0) {
+				payloadSize=Constants.PACKET_CONTENT_SIZE;
+			}
 			
 			// start sending the file
-			PacketBoundedBufferMonitor bufferMonitor=new PacketBoundedBufferMonitor(Constants.MONITOR_BUFFER_SIZE);			
-			InetAddress senderIp=InetAddress.getByName("localhost");			
-			
-			PacketSender packetSender=new PacketSender(bufferMonitor,senderIp,Constants.CLIENT_UDP_PORT,serverIp,serverPort);
-			packetSender.start();
-			
-			FileReader fileReader=new FileReader(bufferMonitor,fullFileName);
-			fileReader.start();
+			List<Future<?>> pipelines=new ArrayList<>();
+			for (int stripe=0; stripe<stripes; stripe++) {
+				PacketQueue bufferMonitor=PacketQueue.create(Constants.MONITOR_BUFFER_SIZE);			
+				// enough packets for a full window, a full buffer and the one being read
+				PacketPool packetPool=new PacketPool(Constants.WINDOW_SIZE+bufferMonitor.capacity()+2,true,
+						Constants.PACKET_HEADER_SIZE+payloadSize);
+				DatagramChannel channel=stripe==0 ? udpChannel : DatagramChannel.open().bind(new InetSocketAddress(senderIp,0));
+				
+				int resumeIndex=stripe<resumeIndexes.length ? Math.max(1,Integer.parseInt(resumeIndexes[stripe])) : 1;
+				PacketSender packetSender=new PacketSender(bufferMonitor,channel,serverIp,serverPort,sessionId+stripe);
+				packetSender.setResumeIndex(resumeIndex);
+				pipelines.add(TransferExecutor.start(packetSender));
+				handedOver=true;
+				
+				long offset=Helper.stripeOffset(file.length(),stripes,stripe,payloadSize);
+				long length=Helper.stripeOffset(file.length(),stripes,stripe+1,payloadSize)-offset;
+				FileReader fileReader=new FileReader(bufferMonitor,packetPool,fullFileName,mapped,offset,length);
+				if (compressed) {
+					fileReader.setCodec(PacketCodec.compressor());
+				}
+				fileReader.setResumeIndex(resumeIndex);
+				fileReader.setPayloadSize(payloadSize);
+				fileReader.setRemoteName(fileName);
+				pipelines.add(TransferExecutor.start(fileReader));
+			}
 			
 			try {
-				packetSender.join();
-				fileReader.join();				
+				TransferExecutor.join(pipelines);
 			} 
 	 		catch (InterruptedException e) {}
 			
 		}catch(Exception e) {e.printStackTrace();}
-		
+		finally {
+			if (udpChannel!=null && !handedOver) {
+				try {
+					udpChannel.close();
+				}catch(IOException e) {e.printStackTrace();}
+			}
+		}
 	}
+	/**
+	 * delete the file, or the directory with everything in it, on the server
+	 */
 	public void deleteFile() {
+		command(ControlChannel.DELETE, "DELETE REQUEST " + fileName, "");
+	}
+
+	/**
+	 * create the directory on the server, with its missing parents
+	 */
+	public void makeDirectory() {
+		command(ControlChannel.MKDIR, "MKDIR REQUEST # " + fileName, "");
+	}
+
+	/**
+	 * move the file or directory on the server to newName, as it was renamed here
+	 */
+	public void moveTo(String newName) {
+		command(ControlChannel.MOVE, "MOVE REQUEST # " + fileName + " # " + newName, newName);
+	}
+
+	/**
+	 * send a request that has no answer but its completion
+	 */
+	private void command(byte op, String request, String options) {
 		try {
+			if (control!=null) {
+				Log.info(Constants.CRLF + ">> Request: " + request);
+				control.request(op, fileName, 0, options);
+				return;
+			}
 			InetAddress serverIp = InetAddress.getByName("localhost");
 			Socket tcpSocket = new Socket(serverIp, Constants.SERVER_TCP_PORT);
 			PrintWriter outputSocket = new PrintWriter(tcpSocket.getOutputStream(), true);
-			String request = "DELETE REQUEST " + fileName;
 			outputSocket.println(request + Constants.CRLF + "STOP");
-			System.out.println(Constants.CRLF + ">> Request: " + request);
+			Log.info(Constants.CRLF + ">> Request: " + request);
 
 			tcpSocket.close();
 
@@ -236,27 +1017,40 @@ public  class Client {
 	}
 
 	public static int getPortFromServer(Socket tcpSocket,String action,String fileName,int udpPort) {
-		int serverPort=0;
+		return getPortFromResponse(getResponseFromServer(tcpSocket,action,fileName,udpPort));
+	}
+
+	/**
+	 * send a request and return the response line, e.g.
+	 * "SEND REQUEST OK: receive data with the port:16667 # session:3"
+	 */
+	public static String getResponseFromServer(Socket tcpSocket,String action,String fileName,int udpPort) {
+		return getResponseFromServer(tcpSocket,action,fileName,udpPort,"");
+	}
+
+	/**
+	 * @param options "key:value" items appended to the request, each preceded by " # "
+	 */
+	public static String getResponseFromServer(Socket tcpSocket,String action,String fileName,int udpPort,String options) {
+		String response="";
 		try {
 			Scanner inputSocket =  new Scanner(tcpSocket.getInputStream());
 			PrintWriter outputSocket = new PrintWriter(tcpSocket.getOutputStream(), true);
 			
 			// send the HTTP packet	
-			String request=action+" # "+fileName+" # "+udpPort;
+			String request=action+" # "+fileName+" # "+udpPort+options;
 		    outputSocket.println(request+Constants.CRLF+"STOP");
-			System.out.println(Constants.CRLF+">> Request:"+request);
+			Log.info(Constants.CRLF+">> Request:"+request);
 		    
 			// receive the response	
 		    String line=inputSocket.nextLine();
 		    
-		  // get the port number of the server that will receive data for the file		    
+		  // get the response line for the action		    
 		    while(!line.equals("STOP")) {
 		    	if (line.isEmpty()) {line=inputSocket.nextLine();continue;}
 		    	if(line.startsWith(action)){
-					// get the new port that is assigned by the server to receive data
-		    		System.out.println(">> Response:"+line+Constants.CRLF);
-					String [] items=line.split(":");					
-					serverPort=Integer.parseInt(items[items.length-1]);
+		    		Log.info(">> Response:"+line+Constants.CRLF);
+					response=line;
 					break;
 				}
 		    	line=inputSocket.nextLine();
@@ -264,7 +1058,38 @@ public  class Client {
 			 inputSocket.close();
 		     outputSocket.close();
 		}catch(Exception e) {e.printStackTrace();}
-		return serverPort;
+		return response;
+	}
+
+	/**
+	 * @return the line of a response text that answers action, empty if there is none
+	 */
+	public static String getResponseLine(String text,String action) {
+		for (String line : text.split(Constants.CRLF)) {
+			if (line.startsWith(action)) {
+				Log.info(">> Response:"+line+Constants.CRLF);
+				return line;
+			}
+		}
+		return "";
+	}
+
+	/**
+	 * get the new port that is assigned by the server to receive data
+	 */
+	public static int getPortFromResponse(String response) {
+		// a refusal such as "SEND REQUEST BUSY" carries no port
+		if (response.indexOf(':')<0) {return 0;}
+		String [] items=response.split("#")[0].split(":");
+		return Integer.parseInt(items[items.length-1].strip());
+	}
+
+	/**
+	 * get an integer "key:value" option that follows the port in the response, 0 if absent
+	 */
+	public static int getOptionFromResponse(String response,String key) {
+		String value=Helper.getOption(response,key,1);
+		return value==null ? 0 : Integer.parseInt(value);
 	}
 
 }
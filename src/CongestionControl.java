@@ -0,0 +1,106 @@
+/**
+ * Retransmission timer and congestion window of one PacketSender.
+ *
+ * The RTO follows RFC 6298: SRTT and RTTVAR are updated from the RTT of packets acknowledged
+ * after their first transmission only (Karn), RTO = SRTT + 4 * RTTVAR, doubled on every
+ * timeout until a fresh sample arrives. The window is AIMD: it grows by one packet per ACK in
+ * slow start and by one packet per window after that, and is halved at most once per window
+ * of data when a packet times out.
+ */
+public class CongestionControl {
+	private static final long NANOS_PER_MS = 1000000;
+
+	private final int maxWindow;
+	private final long minRto = Constants.MIN_RTO_MS * NANOS_PER_MS;
+	private final long maxRto = Constants.MAX_RTO_MS * NANOS_PER_MS;
+	private long srtt = 0;
+	private long rttvar = 0;
+	private long rto = Constants.RETRANSMIT_TIMEOUT_MS * NANOS_PER_MS;
+
+	private double cwnd = Constants.INITIAL_CWND;
+	private double ssthresh;
+	// no further reduction until a packet sent after the last one is lost
+	private int recoveryIndex = -1;
+
+	private long transmissions = 0;
+	private long retransmissions = 0;
+	private long rttSamples = 0;
+
+	public CongestionControl(int maxWindow) {
+		this.maxWindow = maxWindow;
+		this.ssthresh = maxWindow;
+		this.cwnd = Math.min(cwnd, maxWindow);
+	}
+
+	/**
+	 * @return the number of packets that may be in flight
+	 */
+	public int getWindow() {
+		return Math.max(1, (int) cwnd);
+	}
+
+	/**
+	 * @return the retransmission timeout in nanoseconds
+	 */
+	public long getRto() {
+		return rto;
+	}
+
+	public void onSend(boolean retransmission) {
+		transmissions++;
+		if (retransmission) {
+			retransmissions++;
+		}
+	}
+
+	/**
+	 * a packet was acknowledged
+	 * @param rtt its round trip time in nanoseconds, or -1 if it was retransmitted
+	 */
+	public void onAck(long rtt) {
+		if (rtt >= 0) {
+			if (rttSamples++ == 0) {
+				srtt = rtt;
+				rttvar = rtt / 2;
+			} else {
+				rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+				srtt = (7 * srtt + rtt) / 8;
+			}
+			rto = Math.min(maxRto, Math.max(minRto, srtt + 4 * rttvar));
+		}
+		if (cwnd < ssthresh) {
+			cwnd += 1;
+		} else {
+			cwnd += 1 / cwnd;
+		}
+		cwnd = Math.min(cwnd, maxWindow);
+	}
+
+	/**
+	 * the retransmit timer expired, once for all the packets that are overdue
+	 * @param index the oldest of them
+	 * @param nextIndex the index of the next packet that will be sent
+	 */
+	public void onTimeout(int index, int nextIndex) {
+		rto = Math.min(maxRto, rto * 2);
+		if (index >= recoveryIndex) {
+			ssthresh = Math.max(2, cwnd / 2);
+			cwnd = ssthresh;
+			recoveryIndex = nextIndex;
+		}
+	}
+
+	public double getCwnd() {return cwnd;}
+	public long getSrtt() {return srtt;}
+	public long getTransmissions() {return transmissions;}
+	public long getRetransmissions() {return retransmissions;}
+
+	public double getRetransmitRatio() {
+		return transmissions == 0 ? 0 : (double) retransmissions / transmissions;
+	}
+
+	public String toString() {
+		return String.format("cwnd %.1f, srtt %.3f ms, rto %.3f ms, %d of %d packets retransmitted (%.2f%%)",
+				cwnd, srtt / 1e6, rto / 1e6, retransmissions, transmissions, 100 * getRetransmitRatio());
+	}
+}
@@ -0,0 +1,201 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Size, mtime and digest of the files in the server folder, so that a client can ask whether the
+ * server already has a file before sending it. A file written by a verified transfer is entered
+ * with the digest the transfer computed; any other file is hashed on first lookup and again only
+ * when its size or mtime changes. The index is saved to INDEX_FILE in the server folder shortly
+ * after it changes and loaded on first use, so a restarted server does not hash its files again.
+ *
+ * File format: version (4 bytes) | count (4 bytes), then per file its path relative to the
+ * server folder (writeUTF) | size (8 bytes) | mtime (8 bytes) | digest length (4 bytes) | digest
+ */
+public class ContentIndex {
+	public static final String INDEX_FILE = ".filesync.index";
+	private static final int VERSION = 1;
+	private static final Path folder = Paths.get(Constants.SERVER_FOLDER).toAbsolutePath().normalize();
+	private static final Map<String, Entry> entries = load();
+	private static final AtomicBoolean saveScheduled = new AtomicBoolean();
+	private static final ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "ContentIndex");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread(ContentIndex::save));
+	}
+
+	public static class Entry {
+		final long size;
+		final long lastModified;
+		final byte[] digest;
+
+		Entry(long size, long lastModified, byte[] digest) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.digest = digest;
+		}
+
+		public long getSize() {return size;}
+		public long getLastModified() {return lastModified;}
+		public byte[] getDigest() {return digest;}
+	}
+
+	/**
+	 * @return the entry of file, or null if it does not exist
+	 */
+	public static Entry get(File file) throws IOException {
+		if (!file.isFile()) {
+			return null;
+		}
+		String key = key(file);
+		Entry entry = entries.get(key);
+		if (entry == null || entry.size != file.length() || entry.lastModified != file.lastModified()) {
+			long lastModified = file.lastModified();
+			entry = new Entry(file.length(), lastModified, FileDigest.of(file));
+			entries.put(key, entry);
+			changed();
+		}
+		return entry;
+	}
+
+	/**
+	 * record the digest of a file that was just written
+	 */
+	public static void put(File file, byte[] digest) {
+		entries.put(key(file), new Entry(file.length(), file.lastModified(), digest));
+		changed();
+	}
+
+	public static void invalidate(File file) {
+		if (entries.remove(key(file)) != null) {
+			changed();
+		}
+	}
+
+	/**
+	 * forget a directory and every file in it
+	 */
+	public static void invalidateTree(File dir) {
+		String prefix = key(dir) + "/";
+		if (entries.keySet().removeIf(key -> key.startsWith(prefix))) {
+			changed();
+		}
+	}
+
+	/**
+	 * carry the entries of a moved file or directory over to its new path; a move keeps the mtime
+	 */
+	public static void moveTree(File source, File target) {
+		String from = key(source);
+		String to = key(target);
+		for (String key : List.copyOf(entries.keySet())) {
+			if (key.equals(from) || key.startsWith(from + "/")) {
+				Entry entry = entries.remove(key);
+				if (entry != null) {
+					entries.put(to + key.substring(from.length()), entry);
+				}
+			}
+		}
+		changed();
+	}
+
+	/**
+	 * path of file relative to the server folder, with '/' separators
+	 */
+	private static String key(File file) {
+		Path path = file.toPath().toAbsolutePath().normalize();
+		if (path.startsWith(folder)) {
+			path = folder.relativize(path);
+		}
+		return path.toString().replace(File.separatorChar, '/');
+	}
+
+	private static void changed() {
+		if (saveScheduled.compareAndSet(false, true)) {
+			saver.schedule(ContentIndex::save, Constants.INDEX_SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * write the index next to its file, then move it over the old one
+	 */
+	static synchronized void save() {
+		saveScheduled.set(false);
+		if (!folder.toFile().isDirectory()) {
+			return;
+		}
+		File indexFile = folder.resolve(INDEX_FILE).toFile();
+		File temp = folder.resolve(INDEX_FILE + ".tmp").toFile();
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+				Map<String, Entry> snapshot = Map.copyOf(entries);
+				out.writeInt(VERSION);
+				out.writeInt(snapshot.size());
+				for (Map.Entry<String, Entry> item : snapshot.entrySet()) {
+					out.writeUTF(item.getKey());
+					out.writeLong(item.getValue().size);
+					out.writeLong(item.getValue().lastModified);
+					out.writeInt(item.getValue().digest.length);
+					out.write(item.getValue().digest);
+				}
+			}
+			Files.move(temp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * read the saved index, leaving out the files that are gone
+	 */
+	private static Map<String, Entry> load() {
+		Map<String, Entry> loaded = new ConcurrentHashMap<>();
+		File indexFile = folder.resolve(INDEX_FILE).toFile();
+		if (!indexFile.isFile()) {
+			return loaded;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+			if (in.readInt() != VERSION) {
+				return loaded;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String key = in.readUTF();
+				long size = in.readLong();
+				long lastModified = in.readLong();
+				byte[] digest = new byte[in.readInt()];
+				in.readFully(digest);
+				if (folder.resolve(key).toFile().isFile()) {
+					loaded.put(key, new Entry(size, lastModified, digest));
+				}
+			}
+			Log.info(">> Loaded the content index of " + loaded.size() + " files" + Constants.CRLF);
+		} catch (IOException e) {
+			// a damaged index only costs hashing the files again
+			e.printStackTrace();
+			loaded.clear();
+		}
+		return loaded;
+	}
+}
@@ -0,0 +1,252 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Frames the text a request handler prints as RESPONSE frames: every flush sends what was
+ * printed since the previous one, so the handler of a SEND can answer with the port and
+ * then keep receiving the file.
+ */
+class ControlResponseWriter extends Writer {
+	private final DataOutputStream out;
+	private final int requestId;
+	private final StringBuilder pending = new StringBuilder();
+
+	ControlResponseWriter(DataOutputStream out, int requestId) {
+		this.out = out;
+		this.requestId = requestId;
+	}
+
+	public void write(char[] cbuf, int off, int len) {
+		pending.append(cbuf, off, len);
+	}
+
+	public void flush() throws IOException {
+		if (pending.length() == 0) {
+			return;
+		}
+		ControlChannel.writeFrame(out, requestId, ControlChannel.RESPONSE, pending.toString().getBytes(StandardCharsets.UTF_8));
+		pending.setLength(0);
+	}
+
+	public void close() throws IOException {
+		flush();
+	}
+}
+
+/**
+ * Long-lived TCP connection to the server that carries the SEND, DELETE, SIGNATURE, STAT, LIST,
+ * MKDIR and MOVE requests of a FileMonitor, so a sync does not pay for a TCP handshake and a text
+ * parse per file.
+ *
+ * The client opens with MAGIC, then both sides exchange frames:
+ * length (4 bytes, of the rest) | request id (4 bytes) | op (1 byte) | payload
+ * A request payload is the file name and the options (writeUTF each) and the UDP port (4 bytes).
+ * The server answers a request with RESPONSE frames holding the text of the classic protocol,
+ * then an END frame once it has been handled. Requests are handled concurrently, so any number
+ * of them can be in flight; the answers are matched to their request by id.
+ */
+public class ControlChannel {
+	public static final int MAGIC = 0x46534331; // "FSC1"
+	public static final byte SEND = 1;
+	public static final byte DELETE = 2;
+	public static final byte SIGNATURE = 3;
+	public static final byte RESPONSE = 4;
+	public static final byte END = 5;
+	public static final byte STAT = 6;
+	public static final byte LIST = 7;
+	public static final byte MKDIR = 8;
+	// the options of a MOVE are the new name
+	public static final byte MOVE = 9;
+
+	private final InetAddress serverIp;
+	private final int serverPort;
+	private final AtomicInteger nextRequestId = new AtomicInteger();
+	private final Map<Integer, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+	// text of the requests whose whole response is wanted, gathered until their END frame
+	private final Map<Integer, StringBuilder> gathered = new ConcurrentHashMap<>();
+	private Socket socket = null;
+	private DataOutputStream out = null;
+
+	public ControlChannel(InetAddress serverIp, int serverPort) {
+		this.serverIp = serverIp;
+		this.serverPort = serverPort;
+	}
+
+	/**
+	 * send a request and wait for the first text the server answers it with
+	 * @return the response text, empty if the server handled the request without answering
+	 */
+	public String request(byte op, String fileName, int udpPort, String options) throws IOException {
+		return request(op, fileName, udpPort, options, false);
+	}
+
+	/**
+	 * send a request and wait until the server has handled it
+	 * @return all the text the server answered it with
+	 */
+	public String requestAll(byte op, String fileName) throws IOException {
+		return request(op, fileName, 0, "", true);
+	}
+
+	private String request(byte op, String fileName, int udpPort, String options, boolean whole) throws IOException {
+		int requestId = nextRequestId.incrementAndGet();
+		CompletableFuture<String> response = new CompletableFuture<>();
+		pending.put(requestId, response);
+		if (whole) {
+			gathered.put(requestId, new StringBuilder());
+		}
+		try {
+			ByteArrayOutputStream payload = new ByteArrayOutputStream();
+			DataOutputStream data = new DataOutputStream(payload);
+			data.writeUTF(fileName);
+			data.writeInt(udpPort);
+			data.writeUTF(options);
+			synchronized (this) {
+				writeFrame(connect(), requestId, op, payload.toByteArray());
+			}
+			return response.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while waiting for request " + requestId, e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		} finally {
+			pending.remove(requestId);
+			gathered.remove(requestId);
+		}
+	}
+
+	public synchronized void close() {
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			socket = null;
+		}
+	}
+
+	private synchronized DataOutputStream connect() throws IOException {
+		if (socket == null || socket.isClosed()) {
+			socket = new Socket(serverIp, serverPort);
+			socket.setTcpNoDelay(true);
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeInt(MAGIC);
+			out.flush();
+			Socket connected = socket;
+			Thread reader = new Thread(() -> readResponses(connected));
+			reader.setDaemon(true);
+			reader.start();
+		}
+		return out;
+	}
+
+	private void readResponses(Socket connected) {
+		IOException failure;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(connected.getInputStream()));
+			while (true) {
+				int length = in.readInt();
+				int requestId = in.readInt();
+				byte op = in.readByte();
+				byte[] payload = new byte[length - 5];
+				in.readFully(payload);
+				CompletableFuture<String> response = pending.get(requestId);
+				StringBuilder text = gathered.get(requestId);
+				if (text != null && op == RESPONSE) {
+					text.append(new String(payload, StandardCharsets.UTF_8));
+				} else if (response != null) {
+					response.complete(text != null ? text.toString()
+							: op == RESPONSE ? new String(payload, StandardCharsets.UTF_8) : "");
+				}
+			}
+		} catch (IOException e) {
+			failure = e;
+		}
+		// the next request reconnects, the ones in flight are failed
+		synchronized (this) {
+			if (socket == connected) {
+				close();
+			}
+		}
+		for (CompletableFuture<String> response : pending.values()) {
+			response.completeExceptionally(failure);
+		}
+	}
+
+	public static void writeFrame(DataOutputStream out, int requestId, byte op, byte[] payload) throws IOException {
+		synchronized (out) {
+			out.writeInt(5 + payload.length);
+			out.writeInt(requestId);
+			out.writeByte(op);
+			out.write(payload);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Server side: read requests until the client closes the connection, and hand each of them
+	 * to handler as its decoded fields with a writer for its response. A request with an op the
+	 * server does not know is answered with an error.
+	 */
+	public static void serve(Socket client, DataInputStream in, RequestHandler handler) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+		while (true) {
+			int length;
+			try {
+				length = in.readInt();
+			} catch (IOException e) {
+				return;
+			}
+			int requestId = in.readInt();
+			byte op = in.readByte();
+			byte[] payload = new byte[length - 5];
+			in.readFully(payload);
+
+			DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+			String fileName = data.readUTF();
+			int udpPort = data.readInt();
+			String options = data.readUTF();
+			if (!isRequest(op)) {
+				Log.warn(">> Unknown request op " + op + " for " + fileName);
+				writeFrame(out, requestId, RESPONSE, ("ERROR: unknown request op " + op).getBytes(StandardCharsets.UTF_8));
+				writeFrame(out, requestId, END, new byte[0]);
+				continue;
+			}
+			handler.handle(op, fileName, udpPort, options, new ControlResponseWriter(out, requestId), () -> {
+				try {
+					writeFrame(out, requestId, END, new byte[0]);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			});
+		}
+	}
+
+	private static boolean isRequest(byte op) {
+		return op == SEND || op == DELETE || op == SIGNATURE || op == STAT || op == LIST || op == MKDIR || op == MOVE;
+	}
+
+	interface RequestHandler {
+		/**
+		 * handle the request, writing its response to response, and run done once it is handled
+		 * @param options the " # key:value" options of a SEND, the new name of a MOVE
+		 */
+		void handle(byte op, String fileName, int udpPort, String options, Writer response, Runnable done);
+	}
+}
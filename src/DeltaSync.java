@@ -0,0 +1,382 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * rsync-style weak checksum: a + b * 2^16 over a block, where a is the sum of the bytes
+ * and b the sum of the running values of a. It can be rolled one byte forward in O(1).
+ */
+class RollingChecksum {
+	private int a = 0;
+	private int b = 0;
+	private int length = 0;
+
+	public void reset(ByteBuffer data, int offset, int length) {
+		a = 0;
+		b = 0;
+		this.length = length;
+		for (int i = 0; i < length; i++) {
+			int x = data.get(offset + i) & 0xFF;
+			a += x;
+			b += (length - i) * x;
+		}
+	}
+
+	/**
+	 * slide the block one byte: drop out, append in
+	 */
+	public void roll(byte out, byte in) {
+		int x = out & 0xFF;
+		int y = in & 0xFF;
+		a += y - x;
+		b += a - length * x;
+	}
+
+	public int getValue() {
+		return (a & 0xFFFF) | (b << 16);
+	}
+
+	public static int of(ByteBuffer data, int offset, int length) {
+		RollingChecksum checksum = new RollingChecksum();
+		checksum.reset(data, offset, length);
+		return checksum.getValue();
+	}
+}
+
+/**
+ * The block checksums of a file: a weak rolling checksum and a strong hash per block.
+ * Text form, as sent over the TCP channel: one "weak strongHex" line per block.
+ */
+class BlockSignature {
+	private final int blockSize;
+	private final long fileSize;
+	private final int[] weak;
+	private final byte[][] strong;
+
+	public BlockSignature(int blockSize, long fileSize, int[] weak, byte[][] strong) {
+		this.blockSize = blockSize;
+		this.fileSize = fileSize;
+		this.weak = weak;
+		this.strong = strong;
+	}
+
+	/**
+	 * about sqrt(size) rounded to a KB, between 2 KB and 64 KB
+	 */
+	public static int blockSizeFor(long fileSize) {
+		long size = (long) Math.sqrt(fileSize) & ~1023L;
+		return (int) Math.max(2048, Math.min(64 * 1024, size));
+	}
+
+	public static BlockSignature of(File file) throws IOException {
+		try (FileChannel in = new FileInputStream(file).getChannel()) {
+			long size = in.size();
+			int blockSize = blockSizeFor(size);
+			int blocks = (int) ((size + blockSize - 1) / blockSize);
+			int[] weak = new int[blocks];
+			byte[][] strong = new byte[blocks][];
+			ByteBuffer block = ByteBuffer.allocate(blockSize);
+			for (int i = 0; i < blocks; i++) {
+				block.clear();
+				while (block.hasRemaining() && in.read(block) != -1) {}
+				block.flip();
+				weak[i] = RollingChecksum.of(block, 0, block.limit());
+				strong[i] = strongHash(block, 0, block.limit());
+			}
+			return new BlockSignature(blockSize, size, weak, strong);
+		}
+	}
+
+	public static byte[] strongHash(ByteBuffer data, int offset, int length) {
+		try {
+			MessageDigest md5 = MessageDigest.getInstance("MD5");
+			ByteBuffer slice = data.duplicate();
+			slice.limit(offset + length).position(offset);
+			md5.update(slice);
+			return md5.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public int getBlockSize() {return blockSize;}
+	public long getFileSize() {return fileSize;}
+	public int getBlockCount() {return weak.length;}
+	public int getWeak(int block) {return weak[block];}
+	public byte[] getStrong(int block) {return strong[block];}
+
+	/**
+	 * length of a block, the last one may be short
+	 */
+	public int getBlockLength(int block) {
+		return (int) Math.min(blockSize, fileSize - (long) block * blockSize);
+	}
+
+	public String toLine(int block) {
+		StringBuilder line = new StringBuilder(Integer.toHexString(weak[block])).append(' ');
+		for (byte b : strong[block]) {
+			line.append(String.format("%02x", b));
+		}
+		return line.toString();
+	}
+
+	public static void parseLine(String line, int block, int[] weak, byte[][] strong) {
+		String[] items = line.strip().split(" ");
+		weak[block] = Integer.parseUnsignedInt(items[0], 16);
+		strong[block] = new byte[items[1].length() / 2];
+		for (int i = 0; i < strong[block].length; i++) {
+			strong[block][i] = (byte) Integer.parseInt(items[1].substring(2 * i, 2 * i + 2), 16);
+		}
+	}
+}
+
+/**
+ * Delta format: the new file size, then records of
+ *   'L' length bytes   literal data
+ *   'B' block count    count consecutive blocks of the old file starting at block
+ * and a final 'E'.
+ */
+class DeltaEncoder {
+	private static final int MAX_LITERAL = 64 * 1024;
+
+	/**
+	 * write to delta the instructions that rebuild source from the file the signature was made of
+	 * @return the number of literal bytes in the delta
+	 */
+	public static long encode(File source, BlockSignature signature, File delta) throws IOException {
+		Map<Integer, List<Integer>> blocksByWeak = new HashMap<>();
+		for (int i = 0; i < signature.getBlockCount(); i++) {
+			blocksByWeak.computeIfAbsent(signature.getWeak(i), k -> new ArrayList<>()).add(i);
+		}
+		try (FileChannel in = new FileInputStream(source).getChannel();
+			 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(delta)))) {
+			long size = in.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("delta encoding is limited to files below 2 GB");
+			}
+			MappedByteBuffer data = in.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			int length = (int) size;
+			int blockSize = signature.getBlockSize();
+			long literalBytes = 0;
+			int literalStart = 0;
+			int pendingBlock = -1;
+			int pendingCount = 0;
+			int pos = 0;
+			RollingChecksum checksum = new RollingChecksum();
+			if (length >= blockSize) {
+				checksum.reset(data, 0, blockSize);
+			}
+
+			out.writeLong(size);
+			while (pos + blockSize <= length) {
+				int match = findBlock(blocksByWeak.get(checksum.getValue()), signature, data, pos, blockSize);
+				if (match >= 0) {
+					if (literalStart < pos) {
+						// records stay in file order: blocks found so far, then the literal before this block
+						writeBlocks(out, pendingBlock, pendingCount);
+						pendingCount = 0;
+						literalBytes += writeLiteral(out, data, literalStart, pos);
+					}
+					if (pendingCount > 0 && pendingBlock + pendingCount == match) {
+						pendingCount++;
+					} else {
+						writeBlocks(out, pendingBlock, pendingCount);
+						pendingBlock = match;
+						pendingCount = 1;
+					}
+					pos += blockSize;
+					literalStart = pos;
+					if (pos + blockSize <= length) {
+						checksum.reset(data, pos, blockSize);
+					}
+					continue;
+				}
+				if (pos + blockSize < length) {
+					checksum.roll(data.get(pos), data.get(pos + blockSize));
+				}
+				pos++;
+				if (pos - literalStart >= MAX_LITERAL) {
+					writeBlocks(out, pendingBlock, pendingCount);
+					pendingCount = 0;
+					literalBytes += writeLiteral(out, data, literalStart, pos);
+					literalStart = pos;
+				}
+			}
+			if (pendingCount > 0 && literalStart < length) {
+				writeBlocks(out, pendingBlock, pendingCount);
+				pendingCount = 0;
+			}
+			literalBytes += writeLiteral(out, data, literalStart, length);
+			writeBlocks(out, pendingBlock, pendingCount);
+			out.writeByte('E');
+			return literalBytes;
+		}
+	}
+
+	private static int findBlock(List<Integer> candidates, BlockSignature signature, ByteBuffer data, int pos, int blockSize) {
+		if (candidates == null) {
+			return -1;
+		}
+		byte[] strong = null;
+		for (int block : candidates) {
+			if (signature.getBlockLength(block) != blockSize) {
+				continue;
+			}
+			if (strong == null) {
+				strong = BlockSignature.strongHash(data, pos, blockSize);
+			}
+			if (Arrays.equals(strong, signature.getStrong(block))) {
+				return block;
+			}
+		}
+		return -1;
+	}
+
+	private static int writeLiteral(DataOutputStream out, ByteBuffer data, int from, int to) throws IOException {
+		for (int start = from; start < to; start += MAX_LITERAL) {
+			int length = Math.min(MAX_LITERAL, to - start);
+			byte[] literal = new byte[length];
+			data.get(start, literal);
+			out.writeByte('L');
+			out.writeInt(length);
+			out.write(literal);
+		}
+		return to - from;
+	}
+
+	private static void writeBlocks(DataOutputStream out, int block, int count) throws IOException {
+		if (count > 0) {
+			out.writeByte('B');
+			out.writeInt(block);
+			out.writeInt(count);
+		}
+	}
+}
+
+/**
+ * Rebuilds a file from its previous version and a delta, then replaces it atomically.
+ */
+class DeltaPatcher {
+
+	/**
+	 * @param hash hex SHA-256 of the client's file, the target is left as it is if the rebuilt file
+	 * does not match it; null to take the rebuilt file unchecked
+	 * @return the digest of the patched file
+	 */
+	public static byte[] patch(File target, File delta, int blockSize, String hash) throws IOException {
+		File patched = new File(target.getParentFile(), "." + target.getName() + ".patch");
+		try (FileChannel old = new FileInputStream(target).getChannel();
+			 DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(delta)));
+			 FileChannel out = new FileOutputStream(patched).getChannel()) {
+			long size = in.readLong();
+			while (true) {
+				int type = in.readByte();
+				if (type == 'E') {
+					break;
+				} else if (type == 'L') {
+					byte[] literal = new byte[in.readInt()];
+					in.readFully(literal);
+					ByteBuffer buffer = ByteBuffer.wrap(literal);
+					while (buffer.hasRemaining()) {
+						out.write(buffer);
+					}
+				} else if (type == 'B') {
+					long position = (long) in.readInt() * blockSize;
+					long count = (long) in.readInt() * blockSize;
+					while (count > 0) {
+						long copied = old.transferTo(position, count, out);
+						if (copied <= 0) {
+							throw new IOException("delta refers past the end of " + target);
+						}
+						position += copied;
+						count -= copied;
+					}
+				} else {
+					throw new IOException("corrupt delta record " + type);
+				}
+			}
+			if (out.size() != size) {
+				throw new IOException("patched size " + out.size() + " differs from " + size);
+			}
+			out.force(false);
+		} catch (IOException e) {
+			patched.delete();
+			throw e;
+		}
+		// a block that matched by checksum only, or an old copy that changed since its signature, shows here
+		byte[] digest = FileDigest.of(patched);
+		if (hash != null && !FileDigest.toHex(digest).equals(hash)) {
+			patched.delete();
+			SignatureCache.invalidate(target);
+			throw new IOException("patched " + target + " does not match the digest of the client's file");
+		}
+		Files.move(patched.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		SignatureCache.invalidate(target);
+		ContentIndex.invalidate(target);
+		return digest;
+	}
+}
+
+/**
+ * Server-side signatures of the files in the server folder, recomputed only when the
+ * size or modification time of a file changes.
+ */
+class SignatureCache {
+	private static final Map<String, Entry> signatures = new ConcurrentHashMap<>();
+
+	private static class Entry {
+		final long size;
+		final long lastModified;
+		final BlockSignature signature;
+
+		Entry(long size, long lastModified, BlockSignature signature) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.signature = signature;
+		}
+	}
+
+	/**
+	 * @return the signature of file, or null if it does not exist
+	 */
+	public static BlockSignature get(File file) throws IOException {
+		if (!file.isFile()) {
+			return null;
+		}
+		String key = file.getCanonicalPath();
+		Entry entry = signatures.get(key);
+		if (entry == null || entry.size != file.length() || entry.lastModified != file.lastModified()) {
+			long lastModified = file.lastModified();
+			entry = new Entry(file.length(), lastModified, BlockSignature.of(file));
+			signatures.put(key, entry);
+		}
+		return entry.signature;
+	}
+
+	public static void invalidate(File file) {
+		try {
+			signatures.remove(file.getCanonicalPath());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
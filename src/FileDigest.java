@@ -0,0 +1,66 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * SHA-256 of the data of a transfer. The reader and the writer update it as the packets go by,
+ * the reader sends its digest in the terminator packet and the writer compares it with its own
+ * before it keeps the file.
+ */
+public class FileDigest {
+	public static final String ALGORITHM = "SHA-256";
+	private static final int READ_SIZE = 1024 * 1024;
+
+	public static MessageDigest create() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * feed content to digest without moving its position
+	 */
+	public static void update(MessageDigest digest, ByteBuffer content) {
+		int position = content.position();
+		digest.update(content);
+		content.position(position);
+	}
+
+	/**
+	 * feed length bytes of a file from offset on to digest, for data that did not go by as packets
+	 */
+	public static void update(MessageDigest digest, FileChannel in, long offset, long length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(READ_SIZE, Math.max(length, 1)));
+		long end = offset + length;
+		while (offset < end) {
+			buffer.clear().limit((int) Math.min(buffer.capacity(), end - offset));
+			int read = in.read(buffer, offset);
+			if (read < 0) {
+				break;
+			}
+			offset += read;
+			buffer.flip();
+			digest.update(buffer);
+		}
+	}
+
+	public static byte[] of(File file) throws IOException {
+		MessageDigest digest = create();
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			update(digest, in, 0, in.size());
+		}
+		return digest.digest();
+	}
+
+	public static String toHex(byte[] digest) {
+		return HexFormat.of().formatHex(digest);
+	}
+}
+
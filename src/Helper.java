@@ -51,8 +51,63 @@ public class Helper {
 	            (b[1] & 0xFF) << 16 |
 	            (b[0] & 0xFF) << 24;
 	}
-	
-	
+
+	/**
+	 * turn the 4 bytes of b starting at offset to an integer
+	 * @param b
+	 * @param offset
+	 * @return
+	 */
+	public static int byteArrayToInt(byte[] b, int offset)
+	{
+	    return   b[offset + 3] & 0xFF |
+	            (b[offset + 2] & 0xFF) << 8 |
+	            (b[offset + 1] & 0xFF) << 16 |
+	            (b[offset] & 0xFF) << 24;
+	}
+
+	/**
+	 * write the integer a to the 4 bytes of b starting at offset
+	 * @param a
+	 * @param b
+	 * @param offset
+	 */
+	public static void intToByteArray(int a, byte[] b, int offset)
+	{
+	    b[offset] = (byte) ((a >> 24) & 0xFF);
+	    b[offset + 1] = (byte) ((a >> 16) & 0xFF);
+	    b[offset + 2] = (byte) ((a >> 8) & 0xFF);
+	    b[offset + 3] = (byte) (a & 0xFF);
+	}
+
+	/**
+	 * get the value of a "key:value" item among the "#"-separated parts of a request or
+	 * response line, looking from part fromPart on
+	 * @return the value, or null if absent
+	 */
+	public static String getOption(String line, String key, int fromPart) {
+		String[] parts = line.split("#");
+		for (int i = fromPart; i < parts.length; i++) {
+			String[] items = parts[i].split(":", 2);
+			if (items.length == 2 && items[0].strip().equals(key)) {
+				return items[1].strip();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * start of stripe k when a file of the given size is split into stripes byte ranges;
+	 * every stripe but the last holds a whole number of packets of payloadSize bytes. Stripe k
+	 * ends where stripe k+1 starts, and stripeOffset(size, stripes, stripes, payloadSize) is the size itself.
+	 * @param payloadSize the content bytes per packet negotiated for the transfer
+	 */
+	public static long stripeOffset(long size, int stripes, int k, int payloadSize) {
+		long packets = (size + payloadSize - 1) / payloadSize;
+		long packetsPerStripe = (packets + stripes - 1) / stripes;
+		return Math.min(size, k * packetsPerStripe * payloadSize);
+	}
+
 	/**
 	 * takes file path as input and returns true if path leads to valid directory
 	 * @param path
@@ -0,0 +1,110 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Leveled log of the client and the server. A message is put on a queue and written to
+ * System.out by a background thread, a batch of them in one write, so a transfer never waits
+ * for the console. When the queue is full the message is dropped and counted instead.
+ *
+ * Every packet is logged at TRACE, which is off unless filesync.log is set to trace; those calls
+ * are guarded by Log.TRACE so that their text is not even built.
+ */
+public class Log {
+	enum Level {TRACE, DEBUG, INFO, WARN, ERROR}
+
+	public static final Level LEVEL = Level.valueOf(System.getProperty("filesync.log", "info").toUpperCase());
+	public static final boolean TRACE = LEVEL == Level.TRACE;
+	public static final boolean DEBUG = LEVEL.compareTo(Level.DEBUG) <= 0;
+	private static final int QUEUE_SIZE = 8192;
+	private static final int BATCH_SIZE = 256;
+
+	private static final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+	private static final AtomicLong dropped = new AtomicLong();
+	private static final StringBuilder text = new StringBuilder();
+
+	static {
+		Thread writer = new Thread(Log::drain, "Log");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(Log::flush));
+	}
+
+	public static void trace(String message) {
+		if (TRACE) {
+			append(message);
+		}
+	}
+
+	public static void debug(String message) {
+		if (DEBUG) {
+			append(message);
+		}
+	}
+
+	public static void info(String message) {
+		if (LEVEL.compareTo(Level.INFO) <= 0) {
+			append(message);
+		}
+	}
+
+	public static void warn(String message) {
+		if (LEVEL.compareTo(Level.WARN) <= 0) {
+			append(message);
+		}
+	}
+
+	public static void error(String message) {
+		append(message);
+	}
+
+	public static long getDropped() {
+		return dropped.get();
+	}
+
+	private static void append(String message) {
+		if (!queue.offer(message)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	private static void drain() {
+		List<String> batch = new ArrayList<>(BATCH_SIZE);
+		try {
+			while (true) {
+				batch.add(queue.take());
+				queue.drainTo(batch, BATCH_SIZE - 1);
+				write(batch);
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void write(List<String> batch) {
+		synchronized (text) {
+			for (String message : batch) {
+				text.append(message).append(System.lineSeparator());
+			}
+			long lost = dropped.getAndSet(0);
+			if (lost > 0) {
+				text.append(">> ").append(lost).append(" log messages dropped").append(System.lineSeparator());
+			}
+			System.out.print(text);
+			System.out.flush();
+			text.setLength(0);
+		}
+	}
+
+	/**
+	 * write what is still queued, when the JVM exits
+	 */
+	static void flush() {
+		List<String> rest = new ArrayList<>();
+		queue.drainTo(rest);
+		write(rest);
+	}
+}
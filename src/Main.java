@@ -1,9 +1,70 @@
 import java.io.IOException;
+import java.net.InetAddress;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.HashMap;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A sync waiting for its file to settle: every new event for the path pushes it back by another
+ * quiet window, and it only runs once the size and mtime are unchanged over a whole window.
+ */
+class PendingSync {
+    final Path path;
+    // false as long as any of the merged events was a create, which needs a full send
+    boolean modified;
+    long size = -1;
+    FileTime lastModified = null;
+    ScheduledFuture<?> future;
+    // time of the first of the merged events
+    final long createdAt = System.nanoTime();
+
+    PendingSync(Path path, boolean modified) {
+        this.path = path;
+        this.modified = modified;
+    }
+
+    /**
+     * record the current size and mtime
+     * @return true if they are the same as at the previous call
+     */
+    synchronized boolean settle() {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            boolean stable = attrs.size() == size && attrs.lastModifiedTime().equals(lastModified);
+            size = attrs.size();
+            lastModified = attrs.lastModifiedTime();
+            return stable;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
+
+/**
+ * A file or watched directory that was deleted: if one with the same file key (and for a file the
+ * same size and mtime) appears within the rename window it was moved, otherwise it is deleted on
+ * the server when the window ends.
+ */
+class PendingMove {
+    final Path path;
+    // null for a directory
+    final FileState state;
+    // true if the file had a sync pending or running, so the server's copy may be older or missing
+    final boolean stale;
+    ScheduledFuture<?> future;
+
+    PendingMove(Path path, FileState state, boolean stale) {
+        this.path = path;
+        this.state = state;
+        this.stale = stale;
+    }
+}
 
 class FileMonitor extends Thread {
 
@@ -11,18 +72,49 @@ class FileMonitor extends Thread {
     private final Path dir;
     private final ScheduledExecutorService executor;
     private final Map<WatchKey, Path> keyMap;
+    // file key of every watched directory and state of every file, to recognize them when they are moved within the tree
+    private final Map<Path, Object> dirKeys = new ConcurrentHashMap<>();
+    private final Map<Path, FileState> fileStates = new ConcurrentHashMap<>();
+    private final Map<Object, PendingMove> pendingMoves = new ConcurrentHashMap<>();
+    private final Map<Path, PendingSync> pending = new ConcurrentHashMap<>();
+    private final Set<Path> running = ConcurrentHashMap.newKeySet();
+    private final SyncScheduler scheduler;
+    private final ControlChannel control;
+    private List<PendingSync> batch = new ArrayList<>();
+    private long batchBytes = 0;
+    private ScheduledFuture<?> batchFlush = null;
+
+    private final AtomicLong eventsReceived = new AtomicLong();
+    private final AtomicLong eventsMerged = new AtomicLong();
+    private final AtomicLong syncsDropped = new AtomicLong();
+    private final AtomicLong syncsStarted = new AtomicLong();
 
     public FileMonitor(Path dir) throws IOException {
         this.watcher = FileSystems.getDefault().newWatchService();
         this.dir = dir;
-        this.keyMap = new HashMap<>();
+        this.keyMap = new ConcurrentHashMap<>();
         this.executor = Executors.newSingleThreadScheduledExecutor();
+        this.scheduler = new SyncScheduler(Constants.SYNC_CONCURRENCY, Constants.SYNC_QUEUE_LIMIT);
+        this.control = Constants.CONTROL_CHANNEL
+                ? new ControlChannel(InetAddress.getByName("localhost"), Constants.SERVER_TCP_PORT) : null;
+        Metrics.gauge("monitor.events", eventsReceived::get);
+        Metrics.gauge("monitor.eventsMerged", eventsMerged::get);
+        Metrics.gauge("monitor.pendingSyncs", pending::size);
+        Metrics.gauge("monitor.runningSyncs", running::size);
+        Metrics.gauge("monitor.queuedSyncs", scheduler::getQueued);
+        Metrics.gauge("monitor.activeSyncs", scheduler::getActive);
+        Metrics.gauge("monitor.queueBlockedMillis", scheduler::getBlockedMillis);
+        Metrics.gauge("monitor.queueDeferred", scheduler::getDeferred);
     }
 
     @Override
     public void run() {
         try {
-            registerAll(dir);
+            if (Constants.RECONCILE) {
+                reconcile();
+            } else {
+                registerAll(dir);
+            }
 
             while (true) {
                 WatchKey key = watcher.take();
@@ -39,15 +131,28 @@ class FileMonitor extends Thread {
                     Path fileName = ev.context();
                     Path child = parent.resolve(fileName);
 
-                    if (kind == StandardWatchEventKinds.ENTRY_MODIFY || kind == StandardWatchEventKinds.ENTRY_CREATE) {
-                        System.out.println("File " + fileName + " has changed or been created!");
-                        Future<?> future = executor.submit(() -> syncFile(child));
-                        executor.schedule(() -> handleSyncCompletion(future), 2, TimeUnit.SECONDS);
+                    if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                        // a directory is modified whenever its entries change, which their own events cover
+                        if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+                            Log.info("Directory " + fileName + " has been created!");
+                            directoryCreated(child);
+                        }
+                    }
+                    else if (kind == StandardWatchEventKinds.ENTRY_MODIFY || kind == StandardWatchEventKinds.ENTRY_CREATE) {
+                        Log.info("File " + fileName + " has changed or been created!");
+                        FileState state = record(child);
+                        if (kind == StandardWatchEventKinds.ENTRY_MODIFY || state == null || !fileCreated(child, state)) {
+                            scheduleSync(child, kind == StandardWatchEventKinds.ENTRY_MODIFY);
+                        }
                     }
                     else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
-                        System.out.println("File " + fileName + " has been deleted!");
-                        new Client(fileName.toString(), dir.toString()).deleteFile();
-
+                        if (dirKeys.containsKey(child)) {
+                            Log.info("Directory " + fileName + " has been deleted!");
+                            directoryDeleted(child);
+                        } else {
+                            Log.info("File " + fileName + " has been deleted!");
+                            fileDeleted(child);
+                        }
                     }
 
                 }
@@ -66,6 +171,10 @@ class FileMonitor extends Thread {
             e.printStackTrace();
         } finally {
             executor.shutdown();
+            scheduler.shutdown();
+            if (control != null) {
+                control.close();
+            }
         }
     }
 
@@ -74,25 +183,383 @@ class FileMonitor extends Thread {
         Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
             @Override
             public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
-                keyMap.put(key, dir);
+                register(dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    fileStates.put(file, new FileState(attrs.size(), attrs.lastModifiedTime().toMillis(), attrs.fileKey()));
+                }
                 return FileVisitResult.CONTINUE;
             }
         });
     }
 
-    private void syncFile(Path filePath) {
-        Path fileName = filePath.getFileName();
-        if (fileName != null) {
-            new Client(fileName.toString(), dir.toString()).sendFile();
-            System.out.println("Syncing file: " + fileName);
+    private void register(Path dir) throws IOException {
+        WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        keyMap.put(key, dir);
+        Object fileKey = Files.readAttributes(dir, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).fileKey();
+        if (fileKey != null) {
+            dirKeys.put(dir, fileKey);
+        }
+    }
+
+    /**
+     * @return the current state of file, null if it is gone again
+     */
+    private FileState record(Path file) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            FileState state = new FileState(attrs.size(), attrs.lastModifiedTime().toMillis(), attrs.fileKey());
+            fileStates.put(file, state);
+            return state;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * where the file system has no file keys a moved file is recognized by its size and mtime,
+     * which a move keeps, and synced afterwards in case it was another file
+     */
+    private static Object identity(FileState state) {
+        return state.fileKey != null ? state.fileKey : List.of(state.size, state.lastModified);
+    }
+
+    /**
+     * Move a file on the server instead of sending it again if it is one that was just deleted
+     * elsewhere in the tree.
+     * @return false if the file is new
+     */
+    private boolean fileCreated(Path path, FileState state) {
+        Object identity = identity(state);
+        PendingMove move = pendingMoves.get(identity);
+        if (move == null || !state.matches(move.state) || !pendingMoves.remove(identity, move) || !move.future.cancel(false)) {
+            return false;
+        }
+        new Client(TreeScanner.key(dir, move.path), dir.toString(), control).moveTo(TreeScanner.key(dir, path));
+        if (move.stale || state.fileKey == null) {
+            // only asks the server if the moved copy is already this version
+            scheduleSync(path, true);
+        }
+        return true;
+    }
+
+    private void fileDeleted(Path path) {
+        boolean stale = pending.containsKey(path) || running.contains(path);
+        dropPendingSync(path);
+        FileState state = fileStates.remove(path);
+        if (state == null) {
+            new Client(TreeScanner.key(dir, path), dir.toString(), control).deleteFile();
+            return;
+        }
+        expectMove(identity(state), new PendingMove(path, state, stale));
+    }
+
+    /**
+     * A directory that appeared in the tree is either one that was just deleted, moved here, which
+     * the server moves as well, or a new one, which is watched, created on the server with its
+     * subdirectories and has its files synced.
+     */
+    private void directoryCreated(Path path) {
+        try {
+            Object fileKey = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).fileKey();
+            PendingMove move = fileKey != null ? pendingMoves.get(fileKey) : null;
+            if (move != null && move.state == null && pendingMoves.remove(fileKey, move) && move.future.cancel(false)) {
+                directoryMoved(move.path, path);
+                return;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        List<Path> created = new ArrayList<>();
+        Map<String, FileState> files = TreeScanner.scan(path, subdir -> {
+            register(subdir);
+            synchronized (created) {
+                created.add(subdir);
+            }
+        });
+        created.sort(null);
+        for (Path subdir : created) {
+            new Client(TreeScanner.key(dir, subdir), dir.toString(), control).makeDirectory();
+        }
+        for (Map.Entry<String, FileState> file : files.entrySet()) {
+            fileStates.put(path.resolve(file.getKey()), file.getValue());
+            scheduleSync(path.resolve(file.getKey()), false);
+        }
+    }
+
+    private void directoryMoved(Path from, Path to) {
+        // the watch keys follow the directory, only the paths they map to change
+        keyMap.replaceAll((key, watched) -> rebase(watched, from, to));
+        for (Path watched : List.copyOf(dirKeys.keySet())) {
+            if (watched.startsWith(from)) {
+                dirKeys.put(rebase(watched, from, to), dirKeys.remove(watched));
+            }
+        }
+        for (Path file : List.copyOf(fileStates.keySet())) {
+            if (file.startsWith(from)) {
+                fileStates.put(rebase(file, from, to), fileStates.remove(file));
+            }
+        }
+        new Client(TreeScanner.key(dir, from), dir.toString(), control).moveTo(TreeScanner.key(dir, to));
+        for (Path file : List.copyOf(pending.keySet())) {
+            if (file.startsWith(from)) {
+                dropPendingSync(file);
+                scheduleSync(rebase(file, from, to), true);
+            }
+        }
+    }
+
+    /**
+     * Stop watching a deleted directory and delete it on the server, unless it shows up again
+     * within the rename window.
+     */
+    private void directoryDeleted(Path path) {
+        Object fileKey = dirKeys.get(path);
+        if (fileKey == null) {
+            forget(path);
+            new Client(TreeScanner.key(dir, path), dir.toString(), control).deleteFile();
+            return;
         }
+        expectMove(fileKey, new PendingMove(path, null, false));
     }
 
+    /**
+     * hold back the delete of move.path for the rename window
+     */
+    private void expectMove(Object identity, PendingMove move) {
+        synchronized (move) {
+            move.future = executor.schedule(() -> {
+                synchronized (move) {
+                    pendingMoves.remove(identity, move);
+                    forget(move.path);
+                    new Client(TreeScanner.key(dir, move.path), dir.toString(), control).deleteFile();
+                }
+            }, Constants.RENAME_WINDOW_MS, TimeUnit.MILLISECONDS);
+            pendingMoves.put(identity, move);
+        }
+    }
 
-    private void handleSyncCompletion(Future<?> future) {
-        if (!future.isDone()) {
-            future.cancel(false);
+    private void forget(Path path) {
+        keyMap.entrySet().removeIf(watched -> {
+            if (watched.getValue().startsWith(path)) {
+                watched.getKey().cancel();
+                return true;
+            }
+            return false;
+        });
+        dirKeys.keySet().removeIf(watched -> watched.startsWith(path));
+        fileStates.keySet().removeIf(file -> file.startsWith(path));
+        for (Path file : List.copyOf(pending.keySet())) {
+            if (file.startsWith(path)) {
+                dropPendingSync(file);
+            }
+        }
+    }
+
+    private static Path rebase(Path path, Path from, Path to) {
+        return path.startsWith(from) ? to.resolve(from.relativize(path)) : path;
+    }
+
+    /**
+     * Catch up with what changed while the monitor was not running: list the watched tree in
+     * parallel, registering every directory on the way so that no later change is missed, and
+     * list the server folder in one request. Only the files that are missing or differ in size
+     * or mtime on the server are synced. The files only the server has may belong to another
+     * client that shares the server folder, so they are only deleted with RECONCILE_DELETE.
+     */
+    private void reconcile() throws IOException {
+        long start = System.nanoTime();
+        Map<String, FileState> local = TreeScanner.scan(dir, this::register);
+        local.forEach((file, state) -> fileStates.put(dir.resolve(file), state));
+        Map<String, FileState> remote = null;
+        try {
+            remote = Client.fetchListing(control);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (remote == null) {
+            Log.info("The server did not list its files, only changes from now on are synced");
+            return;
+        }
+        int uploads = 0;
+        for (Map.Entry<String, FileState> file : local.entrySet()) {
+            FileState copy = remote.remove(file.getKey());
+            if (!file.getValue().matches(copy)) {
+                // a file the server has in another version only needs its changes sent
+                scheduleSync(dir.resolve(file.getKey()), copy != null);
+                uploads++;
+            }
+        }
+        if (!Constants.RECONCILE_DELETE) {
+            Log.info("Reconciled " + local.size() + " files with the server in "
+                    + (System.nanoTime() - start) / 1000000 + " ms: " + uploads + " to sync, " + remote.size() + " only on the server kept");
+            return;
+        }
+        for (String fileName : remote.keySet()) {
+            try {
+                scheduler.submit(0, () -> new Client(fileName, dir.toString(), control).deleteFile());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        Log.info("Reconciled " + local.size() + " files with the server in "
+                + (System.nanoTime() - start) / 1000000 + " ms: " + uploads + " to sync, " + remote.size() + " to delete");
+    }
+
+    /**
+     * Collapse a burst of events for the same path into one sync that starts a quiet window
+     * after the last of them.
+     */
+    private void scheduleSync(Path path, boolean modified) {
+        eventsReceived.incrementAndGet();
+        pending.compute(path, (p, sync) -> {
+            if (sync == null) {
+                sync = new PendingSync(p, modified);
+            } else {
+                sync.future.cancel(false);
+                sync.modified &= modified;
+                eventsMerged.incrementAndGet();
+            }
+            sync.settle();
+            PendingSync scheduled = sync;
+            sync.future = executor.schedule(() -> runSync(scheduled), Constants.QUIET_WINDOW_MS, TimeUnit.MILLISECONDS);
+            return sync;
+        });
+    }
+
+    private void dropPendingSync(Path path) {
+        PendingSync sync = pending.remove(path);
+        if (sync != null) {
+            sync.future.cancel(false);
+            syncsDropped.incrementAndGet();
+        }
+    }
+
+    private void runSync(PendingSync sync) {
+        if (!Files.exists(sync.path)) {
+            if (pending.remove(sync.path, sync)) {
+                syncsDropped.incrementAndGet();
+            }
+            return;
+        }
+        // a file still being written, or still being sent by an earlier sync, is checked again after another quiet window
+        if (!sync.settle() || running.contains(sync.path)) {
+            pending.computeIfPresent(sync.path, (p, current) -> {
+                if (current == sync) {
+                    sync.future = executor.schedule(() -> runSync(sync), Constants.QUIET_WINDOW_MS, TimeUnit.MILLISECONDS);
+                }
+                return current;
+            });
+            return;
+        }
+        if (!pending.remove(sync.path, sync)) {
+            return;
+        }
+        running.add(sync.path);
+        if (sync.size < Constants.BATCH_THRESHOLD) {
+            addToBatch(sync);
+        } else {
+            submitSync(sync);
+        }
+    }
+
+    /**
+     * Hold a small file back for a moment so that it can share one transfer with the other small
+     * files that settle around the same time. Only called on the executor thread.
+     */
+    private void addToBatch(PendingSync sync) {
+        batch.add(sync);
+        batchBytes += sync.size;
+        if (batch.size() >= Constants.BATCH_MAX_FILES || batchBytes >= Constants.BATCH_MAX_BYTES) {
+            flushBatch();
+        } else if (batchFlush == null) {
+            batchFlush = executor.schedule(this::flushBatch, Constants.BATCH_LINGER_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushBatch() {
+        if (batchFlush != null) {
+            batchFlush.cancel(false);
+            batchFlush = null;
+        }
+        List<PendingSync> syncs = batch;
+        long bytes = batchBytes;
+        batch = new ArrayList<>();
+        batchBytes = 0;
+        if (syncs.size() == 1) {
+            submitSync(syncs.get(0));
+            return;
+        }
+        if (syncs.isEmpty()) {
+            return;
+        }
+        List<String> fileNames = new ArrayList<>();
+        for (PendingSync sync : syncs) {
+            fileNames.add(TreeScanner.key(dir, sync.path));
+        }
+        enqueue(bytes, () -> {
+            try {
+                syncsStarted.addAndGet(syncs.size());
+                Client.sendBatch(dir.toString(), fileNames, control);
+                Log.info("Syncing " + syncs.size() + " files in one batch");
+            } finally {
+                for (PendingSync sync : syncs) {
+                    running.remove(sync.path);
+                    Metrics.SYNC_ACKED_LATENCY_MILLIS.record((System.nanoTime() - sync.createdAt) / 1000000);
+                }
+            }
+        });
+    }
+
+    private void submitSync(PendingSync sync) {
+        enqueue(sync.size, () -> {
+            try {
+                syncsStarted.incrementAndGet();
+                syncFile(sync.path, sync.modified);
+            } finally {
+                running.remove(sync.path);
+                // from the first event until the server acknowledged the last packet, not until the file is on its disk
+                Metrics.SYNC_ACKED_LATENCY_MILLIS.record((System.nanoTime() - sync.createdAt) / 1000000);
+            }
+        });
+    }
+
+    /**
+     * Queue a sync without blocking the executor thread, which also runs the quiet window and
+     * rename timers: while the scheduler queue is full the sync is offered again a little later.
+     */
+    private void enqueue(long priority, Runnable task) {
+        if (!scheduler.trySubmit(priority, task)) {
+            executor.schedule(() -> enqueue(priority, task), Constants.SYNC_RETRY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public long getEventsReceived() {return eventsReceived.get();}
+    public long getEventsMerged() {return eventsMerged.get();}
+    public long getSyncsDropped() {return syncsDropped.get();}
+    public long getSyncsStarted() {return syncsStarted.get();}
+    public int getPendingSyncs() {return pending.size();}
+    public SyncScheduler getScheduler() {return scheduler;}
+
+    /**
+     * @param modified true for a change to an existing file, which only needs its changed blocks sent
+     */
+    private void syncFile(Path filePath, boolean modified) {
+        String fileName = TreeScanner.key(dir, filePath);
+        if (!fileName.isEmpty()) {
+            Client client = new Client(fileName, dir.toString(), control);
+            if (modified) {
+                client.sendChanges();
+            } else {
+                client.sendFile();
+            }
+            Log.info("Syncing file: " + fileName + " (" + syncsStarted.get() + " syncs for "
+                    + eventsReceived.get() + " events, " + eventsMerged.get() + " merged)");
         }
     }
 }
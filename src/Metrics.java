@@ -0,0 +1,206 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters, gauges and histograms of the client and the server, to tell whether a slow sync
+ * waits on the network (retransmits, duplicate ACKs, RTT), on a queue (occupancy and time
+ * blocked in PacketQueue, time waiting for a free packet) or on the disk (write and fsync times). The registry of a JVM is
+ * registered as the MXBean filesync:type=Metrics, and the server also serves it as text, one
+ * "name value" line per value, at http://localhost:METRICS_PORT/metrics.
+ *
+ * A histogram keeps power-of-two buckets, so its percentiles are upper bounds within a factor
+ * of two; recording costs a few uncontended adds, cheap enough for every packet.
+ */
+public class Metrics {
+	public static final String OBJECT_NAME = "filesync:type=Metrics";
+
+	private static final Map<String, Object> registry = new ConcurrentHashMap<>();
+
+	// client
+	public static final Counter PACKETS_SENT = counter("packets.sent");
+	public static final Counter PACKETS_RETRANSMITTED = counter("packets.retransmitted");
+	public static final Counter BYTES_SENT = counter("bytes.sent");
+	public static final Counter ACKS_DUPLICATE = counter("acks.duplicate");
+	public static final Histogram ACK_RTT_MICROS = histogram("ack.rttMicros");
+	public static final Histogram SEND_RATE = histogram("session.sendKBps");
+	public static final Histogram SYNC_ACKED_LATENCY_MILLIS = histogram("sync.ackedLatencyMillis");
+	// server
+	public static final Counter PACKETS_RECEIVED = counter("packets.received");
+	public static final Counter PACKETS_DUPLICATE = counter("packets.duplicate");
+	public static final Counter PACKETS_DAMAGED = counter("packets.damaged");
+	public static final Counter BYTES_RECEIVED = counter("bytes.received");
+	public static final Histogram RECEIVE_RATE = histogram("session.receiveKBps");
+	public static final Histogram DISK_WRITE_MICROS = histogram("disk.writeMicros");
+	public static final Histogram DISK_FSYNC_MICROS = histogram("disk.fsyncMicros");
+	// both
+	public static final Histogram QUEUE_OCCUPANCY = histogram("queue.occupancy");
+	public static final Histogram DEPOSIT_BLOCKED_MICROS = histogram("queue.depositBlockedMicros");
+	public static final Histogram WITHDRAW_BLOCKED_MICROS = histogram("queue.withdrawBlockedMicros");
+	public static final Histogram POOL_BLOCKED_MICROS = histogram("pool.acquireBlockedMicros");
+
+	static {
+		gauge("log.dropped", Log::getDropped);
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new Values(), new ObjectName(OBJECT_NAME));
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static class Counter {
+		private final LongAdder value = new LongAdder();
+
+		public void increment() {value.increment();}
+		public void add(long amount) {value.add(amount);}
+		public long get() {return value.sum();}
+	}
+
+	public static class Histogram {
+		private final LongAdder[] buckets = new LongAdder[64];
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+
+		Histogram() {
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		/**
+		 * @param value not negative; bucket i holds the values below 2^i
+		 */
+		public void record(long value) {
+			value = Math.max(0, value);
+			buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+			sum.add(value);
+			long current = max.get();
+			while (value > current && !max.compareAndSet(current, value)) {
+				current = max.get();
+			}
+		}
+
+		public long getCount() {
+			long count = 0;
+			for (LongAdder bucket : buckets) {
+				count += bucket.sum();
+			}
+			return count;
+		}
+
+		public long getMean() {
+			long count = getCount();
+			return count == 0 ? 0 : sum.sum() / count;
+		}
+
+		public long getMax() {return max.get();}
+
+		/**
+		 * @return the upper bound of the bucket that holds the given percentile
+		 */
+		public long getPercentile(double percentile) {
+			long count = getCount();
+			long rank = (long) Math.ceil(count * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				seen += buckets[i].sum();
+				if (count > 0 && seen >= rank) {
+					return Math.min(max.get(), i == 0 ? 0 : (1L << i) - 1);
+				}
+			}
+			return 0;
+		}
+	}
+
+	public static Counter counter(String name) {
+		return (Counter) registry.computeIfAbsent(name, n -> new Counter());
+	}
+
+	public static Histogram histogram(String name) {
+		return (Histogram) registry.computeIfAbsent(name, n -> new Histogram());
+	}
+
+	/**
+	 * report the value of supplier under name, replacing an earlier gauge of that name
+	 */
+	public static void gauge(String name, LongSupplier supplier) {
+		registry.put(name, supplier);
+	}
+
+	/**
+	 * @return every value by name, a histogram as name.count, .mean, .p50, .p99 and .max
+	 */
+	public static Map<String, Long> snapshot() {
+		Map<String, Long> values = new TreeMap<>();
+		for (Map.Entry<String, Object> metric : registry.entrySet()) {
+			String name = metric.getKey();
+			Object value = metric.getValue();
+			if (value instanceof Counter) {
+				values.put(name, ((Counter) value).get());
+			} else if (value instanceof Histogram) {
+				Histogram histogram = (Histogram) value;
+				values.put(name + ".count", histogram.getCount());
+				values.put(name + ".mean", histogram.getMean());
+				values.put(name + ".p50", histogram.getPercentile(50));
+				values.put(name + ".p99", histogram.getPercentile(99));
+				values.put(name + ".max", histogram.getMax());
+			} else {
+				values.put(name, ((LongSupplier) value).getAsLong());
+			}
+		}
+		return values;
+	}
+
+	public static String format() {
+		StringBuilder text = new StringBuilder();
+		snapshot().forEach((name, value) -> text.append(name).append(' ').append(value).append('\n'));
+		return text.toString();
+	}
+
+	/**
+	 * serve the metrics as text on a port of the loopback interface, 0 to not serve them
+	 */
+	public static void serve(int port) {
+		if (port == 0) {
+			return;
+		}
+		try {
+			HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+			http.createContext("/metrics", exchange -> {
+				byte[] body = format().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			});
+			http.setExecutor(null);
+			http.start();
+			Log.info(">> Metrics served at http://localhost:" + port + "/metrics" + Constants.CRLF);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public interface ValuesMXBean {
+		Map<String, Long> getValues();
+	}
+
+	static class Values implements ValuesMXBean {
+		public Map<String, Long> getValues() {
+			return snapshot();
+		}
+	}
+}
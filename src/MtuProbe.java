@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds the largest datagram that reaches the receive engine in one piece, so that packets are
+ * not IP-fragmented on the way: losing one fragment loses the whole datagram.
+ *
+ * Candidates run from the MTU of the local interface down through the common path MTUs; each
+ * probe is a datagram of session 0 and index Constants.PROBE_INDEX padded to the candidate
+ * size, which the engine answers with the length it received. Probes are sent with the don't-fragment bit
+ * where the JDK supports it, so a link with a smaller MTU drops them instead of fragmenting.
+ * The result is cached per server for MTU_PROBE_CACHE_MS.
+ */
+public class MtuProbe {
+	// IPv4 and UDP headers
+	private static final int IP_UDP_OVERHEAD = 28;
+	// jumbo frames, Ethernet, PPPoE, the IPv6 minimum
+	private static final int[] PATH_MTUS = {9000, 1500, 1492, 1280};
+	private static final int ATTEMPTS = 3;
+	private static final int PROBE_TIMEOUT_MS = 50;
+
+	private static final Map<InetSocketAddress, long[]> cache = new ConcurrentHashMap<>();
+
+	/**
+	 * @return the packet content size to use with the receive engine at server, at most DATAGRAM_SIZE
+	 */
+	public static int payloadSize(InetSocketAddress server) {
+		long now = System.currentTimeMillis();
+		long[] cached = cache.get(server);
+		if (cached != null && now - cached[1] < Constants.MTU_PROBE_CACHE_MS) {
+			return (int) cached[0];
+		}
+		int datagramSize = probe(server);
+		int payload = datagramSize - Constants.PACKET_HEADER_SIZE;
+		Log.info(">> Datagrams of " + datagramSize + " bytes reach " + server + Constants.CRLF);
+		cache.put(server, new long[] {payload, now});
+		return payload;
+	}
+
+	private static int probe(InetSocketAddress server) {
+		try (DatagramChannel channel = DatagramChannel.open(); Selector selector = Selector.open()) {
+			channel.connect(server);
+			setDontFragment(channel);
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ);
+			ByteBuffer probe = ByteBuffer.allocate(Constants.DATAGRAM_SIZE);
+			ByteBuffer reply = ByteBuffer.allocate(Constants.ACK_SIZE);
+			boolean answered = false;
+			for (int size : candidates(channel)) {
+				for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+					probe.clear().limit(size);
+					probe.putInt(0, 0).putInt(4, Constants.PROBE_INDEX);
+					try {
+						channel.write(probe);
+					} catch (IOException e) {
+						// larger than the local MTU with don't-fragment set
+						break;
+					}
+					int received = awaitReply(channel, selector, reply);
+					answered |= received > 0;
+					if (received == size) {
+						return size;
+					}
+					if (received > 0) {
+						// the engine's buffers are smaller than the probe
+						break;
+					}
+				}
+			}
+			if (!answered) {
+				// nothing answers probes (a per-session receiver): keep the configured size
+				return Constants.DATAGRAM_SIZE;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return Constants.DATAGRAM_SIZE;
+		}
+		return PATH_MTUS[PATH_MTUS.length - 1] - IP_UDP_OVERHEAD;
+	}
+
+	/**
+	 * @return the length the engine received, 0 if no answer came in time
+	 */
+	private static int awaitReply(DatagramChannel channel, Selector selector, ByteBuffer reply) throws IOException {
+		long deadline = System.currentTimeMillis() + PROBE_TIMEOUT_MS;
+		long remaining;
+		while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+			selector.select(remaining);
+			selector.selectedKeys().clear();
+			reply.clear();
+			try {
+				if (channel.read(reply) == Constants.ACK_SIZE && reply.getInt(0) == Constants.PROBE_INDEX) {
+					return reply.getInt(4);
+				}
+			} catch (IOException e) {
+				// port unreachable: nothing listens there
+				return 0;
+			}
+		}
+		return 0;
+	}
+
+	private static List<Integer> candidates(DatagramChannel channel) throws IOException {
+		int largest = Constants.DATAGRAM_SIZE;
+		InetAddress local = ((InetSocketAddress) channel.getLocalAddress()).getAddress();
+		NetworkInterface nif = NetworkInterface.getByInetAddress(local);
+		if (nif != null && nif.getMTU() > 0) {
+			largest = Math.min(largest, nif.getMTU() - IP_UDP_OVERHEAD);
+		}
+		List<Integer> sizes = new ArrayList<>();
+		sizes.add(largest);
+		for (int mtu : PATH_MTUS) {
+			if (mtu - IP_UDP_OVERHEAD < largest) {
+				sizes.add(mtu - IP_UDP_OVERHEAD);
+			}
+		}
+		return sizes;
+	}
+
+	/**
+	 * IP_DONTFRAGMENT is only in jdk.net from JDK 19 on, and not on every platform
+	 */
+	@SuppressWarnings("unchecked")
+	private static void setDontFragment(DatagramChannel channel) {
+		try {
+			Object option = Class.forName("jdk.net.ExtendedSocketOptions").getField("IP_DONTFRAGMENT").get(null);
+			channel.setOption((SocketOption<Boolean>) option, true);
+		} catch (ReflectiveOperationException | UnsupportedOperationException | IOException e) {
+			// fragmented probes still get through, the interface MTU bounds the first candidate
+		}
+	}
+}
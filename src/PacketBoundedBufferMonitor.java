@@ -1,59 +1,342 @@
-import java.util.Arrays;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
 
+/**
+ * Wire format: session id (4 bytes) | packet index (4 bytes) | CRC32C (4 bytes) | content
+ *
+ * The CRC32C covers the session id, the index and the content; the sender seals the packet
+ * once before its first transmission and the receiver drops a datagram that does not verify.
+ *
+ * The packet is backed by a single ByteBuffer holding the whole datagram, so it can be
+ * received into, read into from a file and sent without copying. Pooled packets go back
+ * to their PacketPool with release() once the data has been sent or written.
+ * The content may instead live outside the packet buffer (a slice of a memory-mapped file),
+ * in which case the header and the content are sent with one gathering write.
+ */
 class Packet {
-	private int index=0;
-	private byte[] content=new byte[Constants.MAX_DATAGRAM_SIZE];
-	private int contentSize=0;
+	private final ByteBuffer buffer;
+	private final PacketPool pool;
+	private final ByteBuffer[] gather=new ByteBuffer[2];
+	private ByteBuffer mappedContent=null;
+	private long sentAt=0;
+	private int transmissions=0;
+	private final CRC32C crc=new CRC32C();
 
 
-	public Packet() {}
+	public Packet() {
+		this(null, ByteBuffer.allocate(Constants.MAX_DATAGRAM_SIZE));
+	}
 	public Packet(int index) {
-		this.index=index;
+		this();
+		setIndex(index);
 	}
 	public Packet(int index,byte[] content,int readSize) {
-		this.index=index;
-		this.content=content;
-		this.contentSize=readSize;
+		this(null, ByteBuffer.allocate(Constants.PACKET_HEADER_SIZE+readSize));
+		setIndex(index);
+		setContent(content, readSize);
 	}
 
 
 	public Packet(byte[] packetArray, int length) {
-		if (length>=4) {
-			this.index=Helper.byteArrayToInt(Helper.get4Bytes(packetArray));
-			this.content=Arrays.copyOfRange(packetArray, 4, length);
-			this.contentSize=this.content.length;
+		this(null, ByteBuffer.allocate(Math.max(length, Constants.PACKET_HEADER_SIZE)));
+		if (length>=Constants.PACKET_HEADER_SIZE) {
+			setDatagramLength(length);
+			this.buffer.put(0, packetArray, 0, length);
 		}else {
-			System.out.println("Error: the packet size should be >= 4.");
+			Log.error("Error: the packet size should be >= "+Constants.PACKET_HEADER_SIZE+".");
+		}
+	}
+
+	Packet(PacketPool pool, ByteBuffer buffer) {
+		this.pool=pool;
+		this.buffer=buffer;
+		reset(0);
+	}
+
+
+	/**
+	 * empty the content and set a new index, keeping the buffer
+	 */
+	public void reset(int index) {
+		this.mappedContent=null;
+		this.gather[1]=null;
+		this.sentAt=0;
+		this.transmissions=0;
+		setDatagramLength(Constants.PACKET_HEADER_SIZE);
+		setSessionId(0);
+		setIndex(index);
+	}
+
+	/**
+	 * give a pooled packet back to its pool; the packet must not be used afterwards
+	 */
+	public void release() {
+		if (pool!=null) {
+			pool.release(this);
 		}
 	}
 
 
 	public byte[] packetToByteArray() {
-		byte[] packetArray=new byte[this.contentSize+4];
-		Helper.save4Bytes(Helper.intToByteArray(this.index), packetArray);
-		System.arraycopy(this.content, 0,packetArray, 4, this.contentSize);
+		byte[] packetArray=new byte[getDatagramLength()+(mappedContent==null ? 0 : mappedContent.limit())];
+		this.buffer.get(0, packetArray, 0, getDatagramLength());
+		if (mappedContent!=null) {
+			mappedContent.get(0, packetArray, getDatagramLength(), mappedContent.limit());
+		}
 		return packetArray;
 	}
 
+	/**
+	 * send the datagram on a connected channel
+	 * @return the number of bytes sent, 0 if the channel had no room for it
+	 */
+	public long sendTo(DatagramChannel channel) throws IOException {
+		if (mappedContent==null) {
+			return channel.write(getBuffer());
+		}
+		gather[0]=getBuffer();
+		gather[1]=mappedContent;
+		mappedContent.position(0);
+		return channel.write(gather);
+	}
+
+	/**
+	 * use a slice of a mapped file as the content instead of the packet buffer
+	 */
+	public void setMappedContent(ByteBuffer content) {
+		setDatagramLength(Constants.PACKET_HEADER_SIZE);
+		this.mappedContent=content;
+	}
+
+	/**
+	 * @return the whole datagram, positioned at 0
+	 */
+	public ByteBuffer getBuffer() {
+		this.buffer.position(0);
+		return this.buffer;
+	}
 
+	/**
+	 * @return the buffer with its full capacity available, to receive a datagram into
+	 */
+	public ByteBuffer prepareReceive() {
+		this.buffer.clear();
+		return this.buffer;
+	}
 
-	public int getIndex() {	return this.index;}
-	public void setIndex(int index) {this.index=index;}
+	/**
+	 * @return the buffer positioned at the content with its full capacity available, to read content into
+	 */
+	public ByteBuffer prepareContent() {
+		this.buffer.clear();
+		this.buffer.position(Constants.PACKET_HEADER_SIZE);
+		return this.buffer;
+	}
+
+	/**
+	 * @return the content only, positioned at its start
+	 */
+	public ByteBuffer getContentBuffer() {
+		if (mappedContent!=null) {
+			mappedContent.position(0);
+			return mappedContent;
+		}
+		this.buffer.position(Constants.PACKET_HEADER_SIZE);
+		return this.buffer;
+	}
+
+	/**
+	 * backing array of a heap packet, for DatagramSocket
+	 */
+	public byte[] array() {return this.buffer.array();}
+	public int getDatagramLength() {return this.buffer.limit();}
+	public void setDatagramLength(int length) {
+		this.buffer.limit(length);
+		this.buffer.position(0);
+	}
+
+	/**
+	 * store the checksum of the complete packet in its header
+	 */
+	public void seal() {
+		this.buffer.putInt(8, checksum());
+	}
+
+	/**
+	 * @return true if the checksum in the header matches the datagram
+	 */
+	public boolean verify() {
+		return getDatagramLength()>=Constants.PACKET_HEADER_SIZE && this.buffer.getInt(8)==checksum();
+	}
+
+	private int checksum() {
+		int length=getDatagramLength();
+		crc.reset();
+		this.buffer.position(0).limit(8);
+		crc.update(this.buffer);
+		this.buffer.limit(length).position(Constants.PACKET_HEADER_SIZE);
+		crc.update(this.buffer);
+		this.buffer.position(0);
+		if (mappedContent!=null) {
+			mappedContent.position(0);
+			crc.update(mappedContent);
+			mappedContent.position(0);
+		}
+		return (int) crc.getValue();
+	}
+
+	public int getSessionId() {return this.buffer.getInt(0);}
+	public void setSessionId(int sessionId) {this.buffer.putInt(0, sessionId);}
+	public int getIndex() {	return this.buffer.getInt(4);}
+	public void setIndex(int index) {this.buffer.putInt(4, index);}
+	public long getSentAt() {return this.sentAt;}
+	public void setSentAt(long sentAt) {this.sentAt=sentAt;}
+	/**
+	 * @return the number of times the packet has been sent so far, counting this one
+	 */
+	public int countTransmission() {return ++this.transmissions;}
+	public int getTransmissions() {return this.transmissions;}
 	public void setContent(byte[] content) {
-		this.content=content;
-		this.contentSize=content.length;
+		setContent(content, content.length);
+	}
+	public void setContent(byte[] content, int size) {
+		setDatagramLength(Constants.PACKET_HEADER_SIZE+size);
+		this.buffer.put(Constants.PACKET_HEADER_SIZE, content, 0, size);
 	}
+	public void setContentSize(int size) {setDatagramLength(Constants.PACKET_HEADER_SIZE+size);}
 	public String getContentInString() {
-		return new String(this.content,0,this.contentSize);
+		return new String(getContent());
 	}
+	/**
+	 * @return a copy of the content
+	 */
 	public byte[] getContent() {
-		return this.content;
+		byte[] content=new byte[getContentSize()];
+		if (mappedContent!=null) {
+			mappedContent.get(0, content);
+		} else {
+			this.buffer.get(Constants.PACKET_HEADER_SIZE, content);
+		}
+		return content;
+	}
+	public int getContentSize() {
+		if (mappedContent!=null) {return mappedContent.limit();}
+		return this.buffer.limit()-Constants.PACKET_HEADER_SIZE;
+	}
+
+}
+
+/**
+ * Free list of packets, recycled so that a transfer in steady state allocates nothing per packet.
+ * Packets are created lazily up to the pool size; once they are all in use acquire() parks until
+ * one is released. The size can change while the pool is in use. Nothing waits on a monitor, so a virtual thread that waits here gives its
+ * carrier thread back.
+ */
+class PacketPool {
+	private final Queue<Packet> free = new ConcurrentLinkedQueue<>();
+	// threads parked in acquire(), each one unparked by a release
+	private final Queue<Thread> waiters = new ConcurrentLinkedQueue<>();
+	private volatile int size;
+	private final boolean direct;
+	private final int datagramSize;
+	private volatile int created = 0;
+
+	public PacketPool(int size, boolean direct) {
+		this(size, direct, Constants.MAX_DATAGRAM_SIZE);
 	}
-	public int getContentSize() {return this.contentSize;}
 
+	/**
+	 * @param datagramSize capacity of every packet, the largest datagram it can hold
+	 */
+	public PacketPool(int size, boolean direct, int datagramSize) {
+		this.size = size;
+		this.direct = direct;
+		this.datagramSize = datagramSize;
+	}
+
+	public Packet acquire() {
+		Packet pkt = tryAcquire();
+		if (pkt == null) {
+			// every packet is queued or in flight
+			long start = System.nanoTime();
+			Thread current = Thread.currentThread();
+			while ((pkt = tryAcquire()) == null) {
+				waiters.add(current);
+				// a packet released before this thread was queued woke nobody: look again before parking
+				if ((pkt = tryAcquire()) != null) {
+					waiters.remove(current);
+					break;
+				}
+				LockSupport.park(this);
+				waiters.remove(current);
+			}
+			// the release that woke this thread may have been meant for a packet another one took
+			Thread next = free.isEmpty() ? null : waiters.peek();
+			if (next != null) {
+				LockSupport.unpark(next);
+			}
+			Metrics.POOL_BLOCKED_MICROS.record((System.nanoTime() - start) / 1000);
+		}
+		return pkt;
+	}
+
+	/**
+	 * @return a free packet, or null if all of them are in use
+	 */
+	public Packet tryAcquire() {
+		Packet pkt = free.poll();
+		if (pkt == null) {
+			pkt = create();
+		}
+		return pkt;
+	}
+
+	/**
+	 * let the pool hold up to size packets; when it shrinks, the packets beyond the new size are
+	 * dropped as they come back
+	 */
+	public synchronized void resize(int size) {
+		this.size = size;
+	}
+
+	void release(Packet pkt) {
+		if (created > size && retire()) {
+			return;
+		}
+		free.offer(pkt);
+		Thread waiter = waiters.poll();
+		if (waiter != null) {
+			LockSupport.unpark(waiter);
+		}
+	}
+
+	private synchronized boolean retire() {
+		if (created <= size) {
+			return false;
+		}
+		created--;
+		return true;
+	}
+
+	private synchronized Packet create() {
+		if (created >= size) {
+			return null;
+		}
+		created++;
+		ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(datagramSize) : ByteBuffer.allocate(datagramSize);
+		return new Packet(this, buffer);
+	}
 }
 
-public class PacketBoundedBufferMonitor {
+/**
+ * The original hand-off built on the object monitor, kept as the reference PacketQueue.
+ */
+public class PacketBoundedBufferMonitor implements PacketQueue {
 	private int fullSlots = 0; 			
 	private int capacity = 0;		
 	private Packet[] buffer=null;
@@ -65,6 +348,7 @@ public class PacketBoundedBufferMonitor {
 	}
 		
 	public synchronized void deposit(Packet pkt) {	
+		long start = fullSlots == capacity ? System.nanoTime() : 0;
 		while (fullSlots == capacity)  {
 			try {
 				wait();
@@ -72,9 +356,13 @@ public class PacketBoundedBufferMonitor {
 				e.printStackTrace();
 			}		
 		}
+		if (start != 0) {
+			Metrics.DEPOSIT_BLOCKED_MICROS.record((System.nanoTime() - start) / 1000);
+		}
 		this.buffer[in] =pkt;
 		in = (in + 1) % capacity;
 		++fullSlots;
+		Metrics.QUEUE_OCCUPANCY.record(fullSlots);
 		
 		notifyAll();	
 	}
@@ -82,6 +370,7 @@ public class PacketBoundedBufferMonitor {
 	public synchronized Packet withdraw() {
 		
 		Packet pkt;
+		long start = fullSlots == 0 ? System.nanoTime() : 0;
 		while (fullSlots == 0) {
 			try {
 				wait();
@@ -89,6 +378,9 @@ public class PacketBoundedBufferMonitor {
 				e.printStackTrace();
 			}
 		}
+		if (start != 0) {
+			Metrics.WITHDRAW_BLOCKED_MICROS.record((System.nanoTime() - start) / 1000);
+		}
 		pkt = this.buffer[out];        
 		out = (out + 1) % capacity;
 		--fullSlots;
@@ -96,5 +388,50 @@ public class PacketBoundedBufferMonitor {
 		notifyAll();		
 		return pkt;
 	}
+
+	/**
+	 * deposit an item without waiting
+	 * @return false if the buffer is full
+	 */
+	public synchronized boolean tryDeposit(Packet pkt) {
+		if (fullSlots == capacity) {
+			return false;
+		}
+		deposit(pkt);
+		return true;
+	}
+
+	/**
+	 * withdraw an item without waiting
+	 * @return the oldest packet, or null if the buffer is empty
+	 */
+	public synchronized Packet tryWithdraw() {
+		if (fullSlots == 0) {
+			return null;
+		}
+		return withdraw();
+	}
+
+	public synchronized int drainTo(Packet[] dest, int offset, int max) {
+		int count = Math.min(fullSlots, max);
+		for (int i = 0; i < count; i++) {
+			dest[offset + i] = this.buffer[out];
+			this.buffer[out] = null;
+			out = (out + 1) % capacity;
+		}
+		fullSlots -= count;
+		if (count > 0) {
+			notifyAll();
+		}
+		return count;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public synchronized int size() {
+		return fullSlots;
+	}
 	
 }
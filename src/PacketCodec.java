@@ -0,0 +1,136 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-packet compression for a transfer negotiated with "compress:deflate".
+ *
+ * Every data packet is compressed on its own, so packets can still be lost, resent and
+ * written in any order. A packet that does not get smaller is sent raw; the receiver
+ * tells the two apart by the length, since it knows from the transfer size how many raw
+ * bytes each index holds. The decompressed content is then written at the same offset
+ * as an uncompressed packet would be.
+ */
+public class PacketCodec {
+	public static final String DEFLATE = "deflate";
+	private static final int SAMPLES = 4;
+	private static final int SAMPLE_SIZE = 16 * 1024;
+
+	private final Deflater deflater;
+	private final Inflater inflater;
+	private final ByteBuffer scratch;
+
+	private PacketCodec(Deflater deflater, Inflater inflater) {
+		this.deflater = deflater;
+		this.inflater = inflater;
+		this.scratch = ByteBuffer.allocateDirect(Constants.MAX_DATAGRAM_SIZE - Constants.PACKET_HEADER_SIZE);
+	}
+
+	public static PacketCodec compressor() {
+		return new PacketCodec(new Deflater(Constants.COMPRESSION_LEVEL, true), null);
+	}
+
+	public static PacketCodec decompressor() {
+		return new PacketCodec(null, new Inflater(true));
+	}
+
+	/**
+	 * replace the content of the packet with its compressed form if that is smaller
+	 */
+	public void compress(Packet pkt) {
+		ByteBuffer content = pkt.getContentBuffer().duplicate();
+		int rawSize = content.remaining();
+		if (rawSize < 2) {
+			return;
+		}
+		deflater.reset();
+		deflater.setInput(content);
+		deflater.finish();
+		// one byte short of the raw size: whatever does not fit is not worth sending compressed
+		scratch.clear().limit(rawSize - 1);
+		deflater.deflate(scratch);
+		if (!deflater.finished()) {
+			return;
+		}
+		scratch.flip();
+		int compressedSize = scratch.remaining();
+		pkt.setMappedContent(null);
+		pkt.prepareContent().put(scratch);
+		pkt.setContentSize(compressedSize);
+	}
+
+	/**
+	 * @param rawSize the number of bytes the packet holds before compression
+	 * @param out room for rawSize bytes, used if the packet was compressed
+	 * @return the raw content of the packet, positioned at its start
+	 */
+	public ByteBuffer decompress(Packet pkt, int rawSize, ByteBuffer out) throws IOException {
+		ByteBuffer content = pkt.getContentBuffer();
+		if (pkt.getContentSize() >= rawSize) {
+			return content;
+		}
+		inflater.reset();
+		inflater.setInput(content.duplicate());
+		out.clear().limit(rawSize);
+		try {
+			while (out.hasRemaining() && !inflater.finished()) {
+				if (inflater.inflate(out) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("corrupt compressed packet " + pkt.getIndex(), e);
+		}
+		if (out.hasRemaining()) {
+			throw new IOException("compressed packet " + pkt.getIndex() + " is short of " + rawSize + " bytes");
+		}
+		return out.flip();
+	}
+
+	/**
+	 * raw size of a packet of a transfer of length bytes
+	 */
+	public static int rawSize(int index, long length, int payloadSize) {
+		return (int) Math.min(payloadSize, length - (long) (index - 1) * payloadSize);
+	}
+
+	/**
+	 * Sample a few blocks spread over the file and estimate the entropy of its bytes; data that is
+	 * already compressed or encrypted (mp3, pdf streams, zip, jpeg, ...) is close to 8 bits per byte.
+	 */
+	public static boolean worthCompressing(File file) {
+		long size = file.length();
+		if (size == 0) {
+			return false;
+		}
+		long[] counts = new long[256];
+		long total = 0;
+		try (FileChannel in = new FileInputStream(file).getChannel()) {
+			ByteBuffer sample = ByteBuffer.allocate(SAMPLE_SIZE);
+			for (int i = 0; i < SAMPLES; i++) {
+				sample.clear();
+				in.read(sample, size * i / SAMPLES);
+				sample.flip();
+				while (sample.hasRemaining()) {
+					counts[sample.get() & 0xFF]++;
+				}
+				total += sample.limit();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+		double entropy = 0;
+		for (long count : counts) {
+			if (count > 0) {
+				double p = (double) count / total;
+				entropy -= p * Math.log(p) / Math.log(2);
+			}
+		}
+		return entropy < Constants.COMPRESSION_MAX_ENTROPY;
+	}
+}
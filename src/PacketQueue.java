@@ -0,0 +1,46 @@
+/**
+ * Bounded hand-off of packets between the two threads of a pipeline
+ * (FileReader to PacketSender, PacketReceiver to FileWriter).
+ */
+interface PacketQueue {
+
+	/**
+	 * add a packet, waiting while the queue is full
+	 */
+	void deposit(Packet pkt);
+
+	/**
+	 * remove the oldest packet, waiting while the queue is empty
+	 */
+	Packet withdraw();
+
+	/**
+	 * @return false if the queue is full
+	 */
+	boolean tryDeposit(Packet pkt);
+
+	/**
+	 * @return the oldest packet, or null if the queue is empty
+	 */
+	Packet tryWithdraw();
+
+	/**
+	 * move up to max packets, oldest first, into dest starting at offset without waiting
+	 * @return the number of packets moved
+	 */
+	int drainTo(Packet[] dest, int offset, int max);
+
+	int capacity();
+
+	int size();
+
+	/**
+	 * a queue of the implementation selected by Constants.QUEUE_TYPE
+	 */
+	static PacketQueue create(int capacity) {
+		if (Constants.QUEUE_TYPE.equals("monitor")) {
+			return new PacketBoundedBufferMonitor(capacity);
+		}
+		return new SpscPacketRing(capacity);
+	}
+}
@@ -1,34 +1,52 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
-class PacketReceiver extends Thread {
+class PacketReceiver implements Runnable {
 	private String threadName = "PacketReceiver";
-	private PacketBoundedBufferMonitor bufferMonitor;
+	private PacketQueue bufferMonitor;
 	private DatagramSocket udpReceiverSocket;
 	private DatagramPacket udpReceiverPacket;
 	private InetAddress receiverIp; // local
 	private int receiverPort; // local
 	private InetAddress senderIp; // remote
 	private int senderPort; // remote
+	private boolean ordered = true;
+	private int resumeIndex = 1;
 
 	public PacketReceiver() {
 	}
 
-	public PacketReceiver(PacketBoundedBufferMonitor bm, InetAddress receiverIp, int receiverPort,
+	public PacketReceiver(PacketQueue bm, InetAddress receiverIp, int receiverPort,
 						  InetAddress senderIp, int senderPort) {
 		this.bufferMonitor = bm;
 		this.receiverIp = receiverIp;
@@ -38,52 +56,99 @@ class PacketReceiver extends Thread {
 
 	}
 
+	public PacketReceiver(PacketQueue bm, DatagramSocket udpReceiverSocket, InetAddress senderIp,
+						  int senderPort) {
+		this.bufferMonitor = bm;
+		this.udpReceiverSocket = udpReceiverSocket;
+		this.senderIp = senderIp;
+		this.senderPort = senderPort;
+	}
+
+	/**
+	 * @param ordered false to let packets reach the file writer in any order
+	 */
+	public void setOrdered(boolean ordered) {
+		this.ordered = ordered;
+	}
+
+	/**
+	 * @param resumeIndex the first data packet the client sends, after the head packet
+	 */
+	public void setResumeIndex(int resumeIndex) {
+		this.resumeIndex = resumeIndex;
+	}
+
+	/**
+	 * Selective-repeat receiver: packets inside the window are buffered and acknowledged
+	 * as they arrive, and deposited to the file writer strictly in index order.
+	 */
 	public void run() {
 		try {
-			byte[] buf = new byte[Constants.MAX_DATAGRAM_SIZE];
-			udpReceiverSocket = new DatagramSocket(receiverPort, receiverIp);
-			udpReceiverPacket = new DatagramPacket(buf, Constants.MAX_DATAGRAM_SIZE, senderIp, senderPort);
-			int expectPacketIndex = 0;
+			byte[] ackBuf = new byte[Constants.ACK_SIZE];
+			// enough packets for a full window, a full buffer, the one being written and the one being received
+			PacketPool packetPool = new PacketPool(Constants.WINDOW_SIZE + this.bufferMonitor.capacity() + 2, false,
+					Constants.DATAGRAM_SIZE);
+			if (udpReceiverSocket == null) {
+				udpReceiverSocket = new DatagramSocket(receiverPort, receiverIp);
+			}
+			udpReceiverSocket.setReceiveBufferSize(Constants.SOCKET_BUFFER_SIZE);
+			udpReceiverSocket.setSoTimeout((int) Constants.TRANSFER_IDLE_TIMEOUT_MS);
+			udpReceiverPacket = new DatagramPacket(ackBuf, ackBuf.length, senderIp, senderPort);
+			ReceiveSession session = new ReceiveSession(0, this.bufferMonitor, ordered);
+			session.setResumeIndex(resumeIndex);
 			int currentPacketIndex = 0;
-			boolean depositFlag = false;
 
-			System.out.println(">> Begin to receive packets" + Constants.CRLF);
+			Log.debug(">> Begin to receive packets" + Constants.CRLF);
 			while (true) {
-				// receive packets
-				buf = new byte[Constants.MAX_DATAGRAM_SIZE];
-				udpReceiverPacket.setData(buf, 0, buf.length);
-				udpReceiverSocket.receive(udpReceiverPacket);
-
-				Packet pkt = new Packet(udpReceiverPacket.getData(), udpReceiverPacket.getLength());
-				System.out.println(">> Receive the packet with index " + pkt.getIndex());
+				// receive packets straight into a pooled packet
+				Packet pkt = packetPool.acquire();
+				udpReceiverPacket.setData(pkt.array(), 0, pkt.prepareReceive().capacity());
+				try {
+					udpReceiverSocket.receive(udpReceiverPacket);
+				} catch (SocketTimeoutException e) {
+					// the client went away: let the writer keep what it has for a resume
+					Log.warn(">> No packet for " + Constants.TRANSFER_IDLE_TIMEOUT_MS + " ms, abandon the transfer");
+					pkt.reset(Constants.ABORT_INDEX);
+					this.bufferMonitor.deposit(pkt);
+					break;
+				}
+				if (udpReceiverPacket.getLength() < Constants.PACKET_HEADER_SIZE) {
+					pkt.release();
+					continue;
+				}
+				pkt.setDatagramLength(udpReceiverPacket.getLength());
 
-				// send an ACK packet in case that the packet has already received.
 				currentPacketIndex = pkt.getIndex();
-				if (currentPacketIndex != -1) {
-					while (currentPacketIndex < expectPacketIndex) {
-						// send an ACK with the packet index received
-						udpReceiverPacket.setData(Helper.intToByteArray(currentPacketIndex), 0, 4);
-						udpReceiverSocket.send(udpReceiverPacket);
-
-						buf = new byte[Constants.MAX_DATAGRAM_SIZE];
-						udpReceiverSocket.receive(udpReceiverPacket);
-						pkt = new Packet(udpReceiverPacket.getData(), udpReceiverPacket.getLength());
-						currentPacketIndex = pkt.getIndex();
-					}
+				if (Log.TRACE) {
+					Log.trace(">> Receive the packet with index " + currentPacketIndex);
+				}
+				if (!pkt.verify()) {
+					// damaged on the way: ask for it again rather than wait for the retransmit timer
+					Metrics.PACKETS_DAMAGED.increment();
+					pkt.release();
+					Helper.intToByteArray(Constants.NACK_INDEX, ackBuf, 0);
+					Helper.intToByteArray(currentPacketIndex, ackBuf, 4);
+					udpReceiverPacket.setData(ackBuf, 0, ackBuf.length);
+					udpReceiverSocket.send(udpReceiverPacket);
+					Log.debug("   Checksum mismatch, send a NACK for packet " + currentPacketIndex + Constants.CRLF);
+					continue;
 				}
 
-				// send an ACK with the packet index received
-				udpReceiverPacket.setData(Helper.intToByteArray(currentPacketIndex), 0, 4);
-				udpReceiverSocket.send(udpReceiverPacket);
-				System.out.println("   Send an ACK packet for packet " + currentPacketIndex + Constants.CRLF);
+				if (!session.receive(pkt, true)) {
+					continue;
+				}
 
-				// deposit
-				this.bufferMonitor.deposit(pkt);
-				// increase expectPacketIndex
-				expectPacketIndex += 1;
+				// send an ACK with the packet index received and the next index expected
+				Helper.intToByteArray(currentPacketIndex, ackBuf, 0);
+				Helper.intToByteArray(session.getExpectPacketIndex(), ackBuf, 4);
+				udpReceiverPacket.setData(ackBuf, 0, ackBuf.length);
+				udpReceiverSocket.send(udpReceiverPacket);
+				if (Log.TRACE) {
+					Log.trace("   Send an ACK packet for packet " + currentPacketIndex + Constants.CRLF);
+				}
 
-				if (pkt.getIndex() == -1) {
-					System.out.println(">> Finish receiving packets");
+				if (session.isFinished()) {
+					Log.debug(">> Finish receiving packets");
 					break;
 				}
 
@@ -99,54 +164,167 @@ class PacketReceiver extends Thread {
 	}
 }
 
-class FileWriter extends Thread {
+class FileWriter implements Runnable {
 	private String threadName = "FileWriter";
-	private PacketBoundedBufferMonitor bufferMonitor;
+	private PacketQueue bufferMonitor;
 	FileChannel channel = null;
-	String folderPath = "serverFileHolder";
+	String folderPath = Constants.SERVER_FOLDER;
+	// file offset of packet 1, and whether the file was created and sized before the transfer
+	private long baseOffset = 0;
+	private boolean preallocated = false;
+	// written instead of the file named in the head packet when set
+	private File target = null;
+	// decompresses the data packets of a compressed transfer of rawLength bytes
+	private PacketCodec codec = null;
+	private long rawLength = 0;
+	// writes to the part file of a resumable transfer and records its progress
+	private TransferJournal journal = null;
+	// content bytes per packet, negotiated for the transfer
+	private int payloadSize = Constants.PACKET_CONTENT_SIZE;
+	// digest of the data written, kept up while the packets come in index order
+	private final MessageDigest digest = FileDigest.create();
+	private int digestIndex = 1;
+	private boolean streaming = true;
+	private long end = 0;
+	private boolean verified = false;
 
 	public FileWriter() {
 	}
 
-	public FileWriter(PacketBoundedBufferMonitor bm) {
+	public FileWriter(PacketQueue bm) {
+		this.bufferMonitor = bm;
+	}
+
+	/**
+	 * a writer for one stripe of a file that is already preallocated to its full size
+	 */
+	public FileWriter(PacketQueue bm, long baseOffset) {
 		this.bufferMonitor = bm;
+		this.baseOffset = baseOffset;
+		this.preallocated = true;
+	}
+
+	public void setTarget(File target) {
+		this.target = target;
+	}
+
+	public void setJournal(TransferJournal journal) {
+		this.journal = journal;
+	}
+
+	public void setPayloadSize(int payloadSize) {
+		this.payloadSize = payloadSize;
+	}
+
+	/**
+	 * @return true once the whole file has been written and matches the digest the client sent
+	 */
+	public boolean isVerified() {
+		return verified;
+	}
+
+	/**
+	 * @param rawLength size of the data sent before compression, -1 if it is not compressed
+	 */
+	public void setCompressed(long rawLength) {
+		this.codec = rawLength < 0 ? null : PacketCodec.decompressor();
+		this.rawLength = rawLength;
 	}
 
 	public void run() {
 		try {
 			String fileName = "";
-			ByteBuffer buffer = ByteBuffer.allocate(Constants.MAX_DATAGRAM_SIZE);
-			List<Integer> packetIndices = new ArrayList<>();
-
-			System.out.println(">> Begin to write packets to a file" + Constants.CRLF);
-			while (true) {
+			int packetCount = 0;
+			// packets are withdrawn in batches and consecutive data packets written with one gathering write
+			Packet[] batch = new Packet[this.bufferMonitor.capacity()];
+			ByteBuffer[] contents = new ByteBuffer[batch.length];
+			ByteBuffer[] inflated = new ByteBuffer[codec == null ? 0 : batch.length];
+			for (int i = 0; i < inflated.length; i++) {
+				inflated[i] = ByteBuffer.allocateDirect(payloadSize);
+			}
+			boolean finished = false;
 
-				Packet pkt = this.bufferMonitor.withdraw();
+			Log.debug(">> Begin to write packets to a file" + Constants.CRLF);
+			while (!finished) {
 
-				if (pkt.getIndex() == -1) {
-					System.out.println(">> Finish saving the file:" + fileName);
-					System.out.println(">> Packet indices: " + packetIndices);
-					break;
-				}
+				batch[0] = this.bufferMonitor.withdraw();
+				int count = 1 + this.bufferMonitor.drainTo(batch, 1, batch.length - 1);
+				int first = 0; // first data packet of the batch that is not written yet
 
-				if (pkt.getIndex() == 0) {
-					// read the head packet
-					String msg = pkt.getContentInString();
-					String fullPath = msg.split(":")[1]; // head packet content: "fileName: file name"
-					Path filePath = Paths.get(fullPath);
-					fileName = filePath.getFileName().toString();
+				for (int i = 0; i < count && !finished; i++) {
+					Packet pkt = batch[i];
+					if (pkt.getIndex() > 0) {
+						if (Log.TRACE) {
+							Log.trace(">> Write to a file the packet with index " + pkt.getIndex());
+						}
+						contents[i] = codec == null ? pkt.getContentBuffer()
+								: codec.decompress(pkt, PacketCodec.rawSize(pkt.getIndex(), rawLength, payloadSize), inflated[i]);
+						packetCount++;
+						continue;
+					}
+					writeBatch(batch, contents, first, i);
+					first = i + 1;
 
-					File file = new File(folderPath + File.separator + fileName);
-					file.createNewFile();
-					channel = new FileOutputStream(file, false).getChannel();
-					System.out.println(Constants.CRLF + ">> Prepare to write the file " + fileName + Constants.CRLF);
+					if (pkt.getIndex() == Constants.TERMINATOR_INDEX) {
+						byte[] expected = pkt.getContent();
+						pkt.release();
+						byte[] actual = writtenDigest();
+						verified = expected.length == 0 || MessageDigest.isEqual(expected, actual);
+						if (!verified) {
+							Log.warn(">> Digest mismatch, discarded the file " + fileName);
+							discard(fileName);
+						} else if (journal != null && preallocated) {
+							// the other stripes may still be coming, the part file is renamed once they are all in
+							journal.save(channel);
+							journal = null;
+						} else if (journal != null) {
+							// the rename makes the file visible, so what was written must be on disk first
+							channel.force(false);
+							channel.close();
+							journal.complete();
+							ContentIndex.put(journal.getTarget(), actual);
+							journal = null;
+						} else if (target == null && !preallocated) {
+							channel.close();
+							ContentIndex.put(Server.resolve(fileName), actual);
+						}
+						Log.info(">> Finish saving the file:" + fileName);
+						Log.debug(">> Packets written: " + packetCount);
+						finished = true;
+					} else if (pkt.getIndex() == Constants.ABORT_INDEX) {
+						pkt.release();
+						abandon();
+						Log.warn(">> Abandoned the file " + fileName + " after " + packetCount + " packets");
+						finished = true;
+					} else {
+						// read the head packet
+						String msg = pkt.getContentInString();
+						pkt.release();
+						// head packet content: "fileName:" and the path relative to the synced folder
+						fileName = msg.substring(msg.indexOf(':') + 1);
 
-				} else {
-					// write packets to a file
-					System.out.println(">> Write to a file the packet with index " + pkt.getIndex());
-					buffer = ByteBuffer.wrap(pkt.getContent(), 0, pkt.getContentSize());
-					channel.write(buffer);
-					packetIndices.add(pkt.getIndex());
+						File file = target != null ? target : Server.resolve(fileName);
+						// opened for reading as well, to digest what did not arrive in order
+						if (journal != null) {
+							// a resumed transfer keeps what the part file already holds
+							channel = FileChannel.open(journal.getPartFile().toPath(), StandardOpenOption.CREATE,
+									StandardOpenOption.WRITE, StandardOpenOption.READ);
+							digestIndex = journal.getResumeIndex();
+							end = Math.max(0, Math.min(channel.size() - baseOffset, (long) (digestIndex - 1) * payloadSize));
+							FileDigest.update(digest, channel, baseOffset, end);
+						} else if (preallocated) {
+							// other stripes write to the same file, never truncate it
+							channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.READ);
+						} else {
+							Files.createDirectories(file.getParentFile().toPath());
+							channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+									StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.READ);
+						}
+						Log.info(Constants.CRLF + ">> Prepare to write the file " + fileName + Constants.CRLF);
+					}
+				}
+				if (!finished) {
+					writeBatch(batch, contents, first, count);
 				}
 
 			} // end of writing a file
@@ -155,6 +333,7 @@ class FileWriter extends Thread {
 			e.printStackTrace();
 		} finally {
 			try {
+				abandon();
 				if (channel != null) {
 					channel.close();
 				}
@@ -164,9 +343,94 @@ class FileWriter extends Thread {
 		}
 	}// end of run()
 
+	/**
+	 * @return the digest of the data written, read back from the file if it did not arrive in order
+	 */
+	private byte[] writtenDigest() throws IOException {
+		if (streaming) {
+			return digest.digest();
+		}
+		Log.debug(">> Packets arrived out of order, digest the file from disk");
+		digest.reset();
+		FileDigest.update(digest, channel, baseOffset, end);
+		return digest.digest();
+	}
+
+	/**
+	 * the transfer broke off: keep the progress in the journal for a resume
+	 */
+	private void abandon() throws IOException {
+		if (journal == null) {
+			return;
+		}
+		if (!preallocated) {
+			journal.abandon(channel);
+		} else if (channel != null) {
+			// a stripe only saves its own progress, receiveStripes gives up the part file
+			journal.save(channel);
+		}
+		journal = null;
+	}
+
+	/**
+	 * drop a file that does not match what the client sent
+	 */
+	private void discard(String fileName) throws IOException {
+		if (journal != null && preallocated) {
+			journal.restart(channel);
+			journal = null;
+		} else if (journal != null) {
+			journal.discard(channel);
+			journal = null;
+		} else if (target == null && !preallocated) {
+			channel.close();
+			Files.deleteIfExists(Server.resolve(fileName).toPath());
+		}
+	}
+
+	/**
+	 * write the contents of batch[from..to) straight from the packet buffers, then recycle the packets.
+	 * Every packet goes to the offset derived from its index, so packets may arrive in any order;
+	 * each run of consecutive indices is written with one gathering write.
+	 */
+	private void writeBatch(Packet[] batch, ByteBuffer[] contents, int from, int to) throws IOException {
+		int runStart = from;
+		for (int i = from; i < to; i++) {
+			if (i + 1 == to || batch[i + 1].getIndex() != batch[i].getIndex() + 1) {
+				if (streaming && batch[runStart].getIndex() == digestIndex) {
+					for (int j = runStart; j <= i; j++) {
+						FileDigest.update(digest, contents[j]);
+					}
+					digestIndex = batch[i].getIndex() + 1;
+				} else {
+					streaming = false;
+				}
+				channel.position(baseOffset + (long) (batch[runStart].getIndex() - 1) * payloadSize);
+				long start = System.nanoTime();
+				while (contents[i].hasRemaining()) {
+					channel.write(contents, runStart, i + 1 - runStart);
+				}
+				Metrics.DISK_WRITE_MICROS.record((System.nanoTime() - start) / 1000);
+				end = Math.max(end, channel.position() - baseOffset);
+				runStart = i + 1;
+			}
+		}
+		for (int i = from; i < to; i++) {
+			if (journal != null) {
+				journal.received(batch[i].getIndex(), channel);
+			}
+			batch[i].release();
+			batch[i] = null;
+			contents[i] = null;
+		}
+	}
+
 }
 
 public class Server {
+	private static final ExecutorService sessions = TransferExecutor.get();
+	// the deltas being received or patched, a STAT of their file waits for them
+	private static final Map<File, CountDownLatch> patches = new ConcurrentHashMap<>();
 
 	public Server() {
 	}
@@ -177,105 +441,627 @@ public class Server {
 			try {
 				serverSocket = new ServerSocket(Constants.SERVER_TCP_PORT);
 			} catch (IOException ioEx) {
-				System.out.println("\n>> Unable to set up port!");
+				Log.error("\n>> Unable to set up port!");
 				System.exit(1);
 			}
 
-			System.out.println("\r\n>> Ready to accept requests");
-			do {
-				try {
-					Socket client = serverSocket.accept();
-					System.out.println("\n>> New request is accepted." + Constants.CRLF);
-
-					Scanner inputSocket = new Scanner(client.getInputStream());
-					PrintWriter outputSocket = new PrintWriter(client.getOutputStream(), true);
-
-					String line = inputSocket.nextLine();
-					String actionType = "";
-					int clientUDPPort = 0;
-					String fileName = "";
-					while (!line.equals("STOP")) {
-						if (line.isEmpty()) {
-							line = inputSocket.nextLine();
-							continue;
-						}
-						if (line.startsWith("SEND REQUEST")) {
-							System.out.println(">> Request: " + line + Constants.CRLF);
-							actionType = "SEND REQUEST";
-							clientUDPPort = Integer.parseInt(line.split("#")[2].strip());
-							break;
-						}
-						if (line.startsWith("DELETE")) {
-							System.out.println(">> Delete request: " + line + Constants.CRLF);
-							actionType = "DELETE";
-							fileName = line.split(" ")[2].strip();
-							System.out.println(fileName);
-							break;
-						}
-						line = inputSocket.nextLine();
-					}
+			Metrics.serve(Constants.METRICS_PORT);
+			serve(serverSocket);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
 
-					if (actionType.equals("SEND REQUEST")) {
-						receiveHandle(client, outputSocket, clientUDPPort);
-					}
+	/**
+	 * accept requests forever; every session runs on its own worker so that clients can upload in parallel
+	 */
+	public static void serve(ServerSocket serverSocket) {
+		Log.info("\r\n>> Ready to accept requests");
+		do {
+			try {
+				Socket client = serverSocket.accept();
+				Log.info("\n>> New request is accepted." + Constants.CRLF);
+				sessions.execute(() -> handleRequest(client));
+			} catch (IOException io) {
+				Log.error(">> Fail to listen to requests!");
+				System.exit(1);
+			}
+		} while (true);
+	}
 
-					if (actionType.equals("DELETE")) {
-						deleteFile(fileName);
+	public static void handleRequest(Socket client) {
+		try {
+			BufferedInputStream input = new BufferedInputStream(client.getInputStream());
+			DataInputStream data = new DataInputStream(input);
+			input.mark(4);
+			if (data.readInt() == ControlChannel.MAGIC) {
+				Log.info(">> Control channel opened by " + client.getRemoteSocketAddress() + Constants.CRLF);
+				// requests are handled concurrently, their responses go back framed with their request id
+				ControlChannel.serve(client, data, (op, fileName, udpPort, options, response, done) -> sessions.execute(() -> {
+					try {
+						handleRequest(client, new PrintWriter(response, true), op, fileName, udpPort, options);
+					} finally {
+						done.run();
 					}
+				}));
+				return;
+			}
+			input.reset();
 
-				} catch (IOException io) {
-					System.out.println(">> Fail to listen to requests!");
-					System.exit(1);
-				}
-			} while (true);
+			Scanner inputSocket = new Scanner(input);
+			PrintWriter outputSocket = new PrintWriter(client.getOutputStream(), true);
+
+			String line = inputSocket.nextLine();
+			while (!line.equals("STOP") && !isRequest(line)) {
+				line = inputSocket.nextLine();
+			}
+			if (!line.equals("STOP")) {
+				handleRequest(client, outputSocket, line);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				client.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static boolean isRequest(String line) {
+		return line.startsWith("SEND REQUEST") || line.startsWith("SIGNATURE REQUEST") || line.startsWith("STAT REQUEST")
+				|| line.startsWith("LIST REQUEST") || line.startsWith("MKDIR REQUEST") || line.startsWith("MOVE REQUEST")
+				|| line.startsWith("DELETE");
+	}
+
+	/**
+	 * handle one request line of the classic protocol, answering on outputSocket
+	 */
+	public static void handleRequest(Socket client, PrintWriter outputSocket, String line) {
+		String[] parts = line.split("#");
+		if (line.startsWith("SEND REQUEST")) {
+			// the options follow the third '#': " # order:any # size:1024"
+			int options = line.indexOf('#', line.indexOf('#', line.indexOf('#') + 1) + 1);
+			handleRequest(client, outputSocket, ControlChannel.SEND, parts[1].strip(), Integer.parseInt(parts[2].strip()),
+					options < 0 ? "" : " " + line.substring(options));
+		} else if (line.startsWith("SIGNATURE REQUEST")) {
+			handleRequest(client, outputSocket, ControlChannel.SIGNATURE, parts[1].strip(), 0, "");
+		} else if (line.startsWith("LIST REQUEST")) {
+			handleRequest(client, outputSocket, ControlChannel.LIST, "", 0, "");
+		} else if (line.startsWith("STAT REQUEST")) {
+			handleRequest(client, outputSocket, ControlChannel.STAT, parts[1].strip(), 0, "");
+		} else if (line.startsWith("MKDIR REQUEST")) {
+			handleRequest(client, outputSocket, ControlChannel.MKDIR, parts[1].strip(), 0, "");
+		} else if (line.startsWith("MOVE REQUEST")) {
+			handleRequest(client, outputSocket, ControlChannel.MOVE, parts[1].strip(), 0, parts[2].strip());
+		} else if (line.startsWith("DELETE")) {
+			handleRequest(client, outputSocket, ControlChannel.DELETE, line.substring("DELETE REQUEST ".length()).strip(), 0, "");
+		}
+	}
+
+	/**
+	 * handle one request, answering on outputSocket
+	 * @param op the ControlChannel op of the request
+	 * @param options the " # key:value" options of a SEND, the new name of a MOVE
+	 */
+	public static void handleRequest(Socket client, PrintWriter outputSocket, byte op, String fileName, int udpPort,
+									 String options) {
+		try {
+			if (op == ControlChannel.SEND) {
+				Log.info(">> Request: SEND REQUEST # " + fileName + " # " + udpPort + options + Constants.CRLF);
+				receive(client, outputSocket, fileName, udpPort, options);
+			} else if (op == ControlChannel.SIGNATURE) {
+				Log.info(">> Request: SIGNATURE REQUEST # " + fileName + Constants.CRLF);
+				sendSignature(outputSocket, fileName);
+			} else if (op == ControlChannel.STAT) {
+				Log.info(">> Request: STAT REQUEST # " + fileName + Constants.CRLF);
+				sendStat(outputSocket, fileName);
+			} else if (op == ControlChannel.LIST) {
+				Log.info(">> Request: LIST REQUEST" + Constants.CRLF);
+				sendListing(outputSocket);
+			} else if (op == ControlChannel.DELETE) {
+				Log.info(">> Delete request: " + fileName + Constants.CRLF);
+				deleteFile(fileName);
+			} else if (op == ControlChannel.MKDIR) {
+				Log.info(">> Request: MKDIR REQUEST # " + fileName + Constants.CRLF);
+				Files.createDirectories(resolve(fileName).toPath());
+			} else if (op == ControlChannel.MOVE) {
+				Log.info(">> Request: MOVE REQUEST # " + fileName + " # " + options + Constants.CRLF);
+				move(fileName, options);
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * receive the file of a SEND request in the way its options ask for
+	 */
+	private static void receive(Socket client, PrintWriter outputSocket, String fileName, int clientUDPPort,
+								String options) throws IOException {
+		boolean ordered = !"any".equals(Helper.getOption(options, "order", 1));
+		int stripes = 1;
+		long fileSize = 0;
+		int deltaBlockSize = 0;
+		boolean batch = Helper.getOption(options, "batch", 1) != null;
+		boolean compress = false;
+		long mtime = -1;
+		int payloadSize = Constants.PACKET_CONTENT_SIZE;
+		if (Helper.getOption(options, "delta", 1) != null) {
+			deltaBlockSize = Integer.parseInt(Helper.getOption(options, "delta", 1));
+		}
+		if (Helper.getOption(options, "stripes", 1) != null) {
+			stripes = Integer.parseInt(Helper.getOption(options, "stripes", 1));
+		}
+		if (Helper.getOption(options, "size", 1) != null) {
+			fileSize = Long.parseLong(Helper.getOption(options, "size", 1));
+			compress = PacketCodec.DEFLATE.equals(Helper.getOption(options, "compress", 1));
+		}
+		if (Helper.getOption(options, "payload", 1) != null) {
+			payloadSize = Math.min(Integer.parseInt(Helper.getOption(options, "payload", 1)),
+					Constants.DATAGRAM_SIZE - Constants.PACKET_HEADER_SIZE);
+		}
+		if (Helper.getOption(options, "mtime", 1) != null) {
+			mtime = Long.parseLong(Helper.getOption(options, "mtime", 1));
+		}
+
+		// the size of the data before compression, -1 for a transfer that is not compressed
+		long rawLength = compress ? fileSize : -1;
+		if (batch) {
+			receiveBatch(client, outputSocket, clientUDPPort, rawLength, payloadSize);
+		} else if (deltaBlockSize > 0) {
+			receiveDelta(client, outputSocket, clientUDPPort, fileName, deltaBlockSize, rawLength, payloadSize, mtime,
+					Helper.getOption(options, "hash", 1));
+		} else if (stripes > 1 && Constants.SHARED_UDP_RECEIVER) {
+			receiveStripes(outputSocket, fileName, fileSize, Math.min(stripes, Constants.MAX_TRANSFER_STREAMS), compress,
+					payloadSize, mtime);
+		} else {
+			// without the shared receiver every stripe would need its own port: use a single stream
+			// a client that says which version of the file it sends can resume a broken transfer of it
+			TransferJournal journal = mtime < 0 ? null : TransferJournal.open(resolve(fileName), fileSize, mtime,
+					payloadSize);
+			receiveHandle(client, outputSocket, clientUDPPort, ordered, null, rawLength, journal, payloadSize);
+		}
+	}
+
 	public static void receiveHandle(Socket socket, PrintWriter outputSocket, int senderPort) {
+		receiveHandle(socket, outputSocket, senderPort, true);
+	}
+
+	/**
+	 * @param ordered false if the client sends in any order, the writer then places packets by offset
+	 */
+	public static void receiveHandle(Socket socket, PrintWriter outputSocket, int senderPort, boolean ordered) {
+		receiveHandle(socket, outputSocket, senderPort, ordered, null);
+	}
+
+	/**
+	 * @param target the file to write, null for the file named in the head packet
+	 */
+	public static void receiveHandle(Socket socket, PrintWriter outputSocket, int senderPort, boolean ordered,
+									 File target) {
+		receiveHandle(socket, outputSocket, senderPort, ordered, target, -1);
+	}
+
+	/**
+	 * @param rawLength the size of the data before compression, -1 to refuse compression
+	 */
+	public static void receiveHandle(Socket socket, PrintWriter outputSocket, int senderPort, boolean ordered,
+									 File target, long rawLength) {
+		receiveHandle(socket, outputSocket, senderPort, ordered, target, rawLength, null, Constants.PACKET_CONTENT_SIZE);
+	}
+
+	/**
+	 * @param journal progress of a resumable transfer, whose part file is written instead of target
+	 * @param payloadSize content bytes per packet
+	 * @return true if the whole file arrived and matches the digest the client sent
+	 */
+	public static boolean receiveHandle(Socket socket, PrintWriter outputSocket, int senderPort, boolean ordered,
+									 File target, long rawLength, TransferJournal journal, int payloadSize) {
+		int resumeIndex = journal == null ? 1 : journal.getResumeIndex();
+		String compression = (rawLength < 0 ? "" : " # compress:" + PacketCodec.DEFLATE)
+				+ (resumeIndex > 1 ? " # resume:" + resumeIndex : "") + payloadOption(payloadSize);
 		try {
-			String response = "SEND REQUEST OK: receive data with the port:" + Constants.SERVER_UDP_PORT;
-			System.out.println(">> Response: " + response + Constants.CRLF);
+			PacketQueue bm = PacketQueue.create(Constants.MONITOR_BUFFER_SIZE);
+
+			if (Constants.SHARED_UDP_RECEIVER) {
+				// the shared engine receives the datagrams, this worker only writes the file
+				SessionReceiveEngine engine = SessionReceiveEngine.getInstance();
+				ReceiveSession session = engine.openSession(bm, ordered, resumeIndex);
+				if (session == null) {
+					refuseBusy(outputSocket);
+					if (journal != null) {
+						journal.abandon(null);
+					}
+					return false;
+				}
+
+				String response = "SEND REQUEST OK: receive data with the port:" + engine.getPort()
+						+ " # session:" + session.getSessionId() + compression;
+				Log.info(">> Response: " + response + Constants.CRLF);
+				outputSocket.println(response + Constants.CRLF + "STOP");
+				outputSocket.close();
+
+				FileWriter fileWriter = new FileWriter(bm);
+				fileWriter.setTarget(target);
+				fileWriter.setCompressed(rawLength);
+				fileWriter.setJournal(journal);
+				fileWriter.setPayloadSize(payloadSize);
+				fileWriter.run();
+				return fileWriter.isVerified();
+			}
+
+			// each session receives on its own ephemeral port, bound before the client starts sending
+			InetAddress receiverIp = InetAddress.getByName("localhost");
+			DatagramSocket udpSocket = new DatagramSocket(0, receiverIp);
+
+			String response = "SEND REQUEST OK: receive data with the port:" + udpSocket.getLocalPort() + compression;
+			Log.info(">> Response: " + response + Constants.CRLF);
 
 			outputSocket.println(response + Constants.CRLF + "STOP");
 			outputSocket.close();
 
-			PacketBoundedBufferMonitor bm = new PacketBoundedBufferMonitor(Constants.MONITOR_BUFFER_SIZE);
 			InetAddress senderIp = socket.getInetAddress();
-			InetAddress receiverIp = InetAddress.getByName("localhost");
 
-			receiveFile(bm, receiverIp, Constants.SERVER_UDP_PORT, senderIp, senderPort);
+			PacketReceiver packetReceiver = new PacketReceiver(bm, udpSocket, senderIp, senderPort);
+			packetReceiver.setOrdered(ordered);
+			packetReceiver.setResumeIndex(resumeIndex);
+			FileWriter fileWriter = new FileWriter(bm);
+			fileWriter.setTarget(target);
+			fileWriter.setCompressed(rawLength);
+			fileWriter.setJournal(journal);
+			fileWriter.setPayloadSize(payloadSize);
+			receiveFile(packetReceiver, fileWriter);
+			return fileWriter.isVerified();
 
 		} catch (Exception e) {
 			e.printStackTrace();
+			if (journal != null) {
+				try {
+					journal.abandon(null);
+				} catch (IOException io) {
+					io.printStackTrace();
+				}
+			}
+			return false;
 		}
 	}
 
-	public static void receiveFile(PacketBoundedBufferMonitor bm, InetAddress receiverIp, int receiverPort,
+	/**
+	 * Receive a file split into byte ranges, each on its own session of the shared engine.
+	 * A part file next to the target is preallocated to the full size and every stripe writer
+	 * places its packets at their offsets, so the stripes can arrive in any order. Each stripe
+	 * keeps its own journal, so a broken transfer resumes every stripe where it stopped. The
+	 * part file is renamed over the target once every stripe verifies, the old copy stays until then.
+	 */
+	public static void receiveStripes(PrintWriter outputSocket, String fileName, long fileSize, int stripes) {
+		receiveStripes(outputSocket, fileName, fileSize, stripes, false, Constants.PACKET_CONTENT_SIZE, -1);
+	}
+
+	/**
+	 * @param mtime the mtime of the client's file, given to the received file; -1 to leave it
+	 */
+	public static void receiveStripes(PrintWriter outputSocket, String fileName, long fileSize, int stripes,
+									  boolean compress, int payloadSize, long mtime) {
+		TransferJournal[] journals = null;
+		try {
+			File file = resolve(fileName);
+			journals = TransferJournal.open(file, fileSize, mtime, payloadSize, stripes);
+			try (RandomAccessFile data = new RandomAccessFile(journals[0].getPartFile(), "rw")) {
+				data.setLength(fileSize);
+			}
+
+			SessionReceiveEngine engine = SessionReceiveEngine.getInstance();
+			PacketQueue[] queues = new PacketQueue[stripes];
+			int[] resumeIndexes = new int[stripes];
+			StringBuilder resume = new StringBuilder();
+			boolean resumed = false;
+			for (int i = 0; i < stripes; i++) {
+				queues[i] = PacketQueue.create(Constants.MONITOR_BUFFER_SIZE);
+				resumeIndexes[i] = journals[i].getResumeIndex();
+				resume.append(i == 0 ? "" : ",").append(resumeIndexes[i]);
+				resumed |= resumeIndexes[i] > 1;
+			}
+			ReceiveSession[] sessions = engine.openSessions(queues, false, resumeIndexes);
+			if (sessions == null) {
+				refuseBusy(outputSocket);
+				journals[0].abandon(null);
+				return;
+			}
+
+			String response = "SEND REQUEST OK: receive data with the port:" + engine.getPort()
+					+ " # session:" + sessions[0].getSessionId() + " # stripes:" + stripes
+					+ (compress ? " # compress:" + PacketCodec.DEFLATE : "")
+					+ (resumed ? " # resume:" + resume : "")
+					+ payloadOption(payloadSize);
+			Log.info(">> Response: " + response + Constants.CRLF);
+			outputSocket.println(response + Constants.CRLF + "STOP");
+			outputSocket.close();
+
+			FileWriter[] writers = new FileWriter[stripes];
+			List<Future<?>> stages = new ArrayList<>();
+			for (int i = 0; i < stripes; i++) {
+				long offset = Helper.stripeOffset(fileSize, stripes, i, payloadSize);
+				writers[i] = new FileWriter(queues[i], offset);
+				writers[i].setJournal(journals[i]);
+				writers[i].setPayloadSize(payloadSize);
+				if (compress) {
+					writers[i].setCompressed(Helper.stripeOffset(fileSize, stripes, i + 1, payloadSize) - offset);
+				}
+				stages.add(TransferExecutor.start(writers[i]));
+			}
+			TransferExecutor.join(stages);
+			boolean verified = true;
+			for (FileWriter writer : writers) {
+				verified &= writer.isVerified();
+			}
+			if (!verified) {
+				Log.warn(">> A stripe of " + fileName + " is damaged or missing, kept the others for a resume");
+				journals[0].abandon(null);
+				return;
+			}
+			journals[0].complete();
+			// every stripe has its own digest, the one of the whole file is read back once
+			ContentIndex.put(file, FileDigest.of(file));
+		} catch (Exception e) {
+			e.printStackTrace();
+			if (journals != null) {
+				try {
+					journals[0].abandon(null);
+				} catch (IOException io) {
+					io.printStackTrace();
+				}
+			}
+		}
+	}
+
+	public static void receiveFile(PacketQueue bm, InetAddress receiverIp, int receiverPort,
 								   InetAddress senderIp, int senderPort) {
-		PacketReceiver packetReceiver = new PacketReceiver(bm, receiverIp, receiverPort, senderIp, senderPort);
-		packetReceiver.start();
+		receiveFile(new PacketReceiver(bm, receiverIp, receiverPort, senderIp, senderPort), bm);
+	}
+
+	public static void receiveFile(PacketQueue bm, DatagramSocket udpSocket, InetAddress senderIp,
+								   int senderPort) {
+		receiveFile(new PacketReceiver(bm, udpSocket, senderIp, senderPort), bm);
+	}
+
+	private static void receiveFile(PacketReceiver packetReceiver, PacketQueue bm) {
+		receiveFile(packetReceiver, new FileWriter(bm));
+	}
+
+	private static void receiveFile(PacketReceiver packetReceiver, FileWriter fileWriter) {
+		try {
+			TransferExecutor.join(List.of(TransferExecutor.start(packetReceiver), TransferExecutor.start(fileWriter)));
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Receive a delta next to the file it applies to, then patch the file with it. The client
+	 * asks for a STAT once its delta is through, which waits for the patch, and sends the file
+	 * whole if the server's copy is not its version.
+	 * @param mtime the mtime of the client's file, given to the patched file; -1 to leave it
+	 * @param hash hex SHA-256 of the client's file, null if the client did not send it
+	 */
+	public static void receiveDelta(Socket socket, PrintWriter outputSocket, int senderPort, String fileName,
+									int blockSize, long rawLength, int payloadSize, long mtime, String hash) {
+		File target = null;
+		File delta = null;
+		CountDownLatch patched = new CountDownLatch(1);
+		try {
+			target = resolve(fileName);
+			delta = new File(target.getParentFile(), "." + target.getName() + ".delta");
+			patches.put(target, patched);
+			if (!receiveHandle(socket, outputSocket, senderPort, true, delta, rawLength, null, payloadSize)) {
+				return;
+			}
+			byte[] digest = DeltaPatcher.patch(target, delta, blockSize, hash);
+			if (mtime >= 0) {
+				target.setLastModified(mtime);
+			}
+			ContentIndex.put(target, digest);
+			Log.info(">> Patched the file " + fileName + Constants.CRLF);
+		} catch (IOException e) {
+			Log.warn(">> Could not patch the file " + fileName + ", kept the old copy: " + e.getMessage());
+		} finally {
+			if (delta != null) {
+				delete(delta);
+				patches.remove(target, patched);
+			}
+			patched.countDown();
+		}
+	}
 
-		FileWriter fileWriter = new FileWriter(bm);
-		fileWriter.start();
+	/**
+	 * Receive a batch of small files as one archive and unpack it into the server folder.
+	 */
+	public static void receiveBatch(Socket socket, PrintWriter outputSocket, int senderPort, long rawLength,
+									int payloadSize) {
+		File archive = null;
 		try {
-			packetReceiver.join();
-			fileWriter.join();
+			archive = File.createTempFile(".batch", null, new File(Constants.SERVER_FOLDER));
+			if (!receiveHandle(socket, outputSocket, senderPort, true, archive, rawLength, null, payloadSize)) {
+				return;
+			}
+			int count = BatchArchive.unpack(archive, new File(Constants.SERVER_FOLDER));
+			Log.info(">> Unpacked " + count + " files from the batch" + Constants.CRLF);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (archive != null) {
+				delete(archive);
+			}
+		}
+	}
+
+	/**
+	 * answer with the block signature of the server's copy of a file, one line per block
+	 */
+	public static void sendSignature(PrintWriter outputSocket, String fileName) {
+		try {
+			BlockSignature signature = SignatureCache.get(resolve(fileName));
+			if (signature == null) {
+				outputSocket.println("SIGNATURE REQUEST NONE" + Constants.CRLF + "STOP");
+				return;
+			}
+			StringBuilder response = new StringBuilder("SIGNATURE REQUEST OK: # blockSize:" + signature.getBlockSize()
+					+ " # size:" + signature.getFileSize() + " # blocks:" + signature.getBlockCount());
+			for (int i = 0; i < signature.getBlockCount(); i++) {
+				response.append(Constants.CRLF).append(signature.toLine(i));
+			}
+			outputSocket.println(response + Constants.CRLF + "STOP");
+		} catch (IOException e) {
+			e.printStackTrace();
+			outputSocket.println("SIGNATURE REQUEST NONE" + Constants.CRLF + "STOP");
+		} finally {
+			outputSocket.close();
+		}
+	}
+
+	/**
+	 * answer with the size, mtime and digest of the server's copy of a file from the content index
+	 */
+	public static void sendStat(PrintWriter outputSocket, String fileName) {
+		try {
+			// a delta that was just sent is only in the file once it is patched
+			CountDownLatch patch = patches.get(resolve(fileName));
+			if (patch != null) {
+				patch.await(Constants.TRANSFER_IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			}
+			ContentIndex.Entry entry = ContentIndex.get(resolve(fileName));
+			if (entry == null) {
+				outputSocket.println("STAT REQUEST NONE" + Constants.CRLF + "STOP");
+				return;
+			}
+			outputSocket.println("STAT REQUEST OK: # size:" + entry.getSize() + " # mtime:" + entry.getLastModified()
+					+ " # hash:" + FileDigest.toHex(entry.getDigest()) + Constants.CRLF + "STOP");
+		} catch (IOException e) {
+			e.printStackTrace();
+			outputSocket.println("STAT REQUEST NONE" + Constants.CRLF + "STOP");
 		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			outputSocket.println("STAT REQUEST NONE" + Constants.CRLF + "STOP");
+		} finally {
+			outputSocket.close();
+		}
+	}
+
+	/**
+	 * Answer with the size and mtime of every file in the server folder, one line per file
+	 * after the "LIST REQUEST OK" line: size mtime path. The lines go out in chunks so that
+	 * the listing of a large folder takes few frames on the control channel.
+	 */
+	public static void sendListing(PrintWriter outputSocket) {
+		try {
+			Path folder = Paths.get(Constants.SERVER_FOLDER);
+			Map<String, FileState> files = folder.toFile().isDirectory() ? TreeScanner.scan(folder) : Map.of();
+			files.keySet().removeIf(Server::isInternal);
+			StringBuilder chunk = new StringBuilder("LIST REQUEST OK: # files:" + files.size());
+			for (Map.Entry<String, FileState> file : files.entrySet()) {
+				chunk.append(Constants.CRLF).append(file.getValue().size).append(' ')
+						.append(file.getValue().lastModified).append(' ').append(file.getKey());
+				if (chunk.length() >= Constants.LIST_CHUNK_SIZE) {
+					outputSocket.print(chunk);
+					outputSocket.flush();
+					chunk.setLength(0);
+				}
+			}
+			outputSocket.println(chunk + Constants.CRLF + "STOP");
+		} finally {
+			outputSocket.close();
+		}
+	}
+
+	/**
+	 * @return true for the files the server keeps next to the synced ones: part files, journals,
+	 * deltas and batches being received, and the content index
+	 */
+	private static boolean isInternal(String path) {
+		String name = path.substring(path.lastIndexOf('/') + 1);
+		return name.startsWith(".") && (name.endsWith(".part") || name.endsWith(".journal") || name.endsWith(".delta")
+				|| name.startsWith(".batch") || name.startsWith(ContentIndex.INDEX_FILE));
+	}
+
+	/**
+	 * tell the client that the receive engine has no room for its session, it sends again later
+	 */
+	private static void refuseBusy(PrintWriter outputSocket) {
+		String response = "SEND REQUEST BUSY";
+		Log.info(">> Response: " + response + Constants.CRLF);
+		outputSocket.println(response + Constants.CRLF + "STOP");
+		outputSocket.close();
+	}
+
+	/**
+	 * the payload size granted to the client, omitted when it is the default
+	 */
+	private static String payloadOption(int payloadSize) {
+		return payloadSize == Constants.PACKET_CONTENT_SIZE ? "" : " # payload:" + payloadSize;
+	}
+
+	/**
+	 * the file or directory a client's relative path names in the server folder
+	 * @throws IOException if the path leads out of the folder
+	 */
+	public static File resolve(String fileName) throws IOException {
+		return resolve(new File(Constants.SERVER_FOLDER), fileName);
+	}
+
+	public static File resolve(File root, String fileName) throws IOException {
+		Path folder = root.toPath().toAbsolutePath().normalize();
+		Path path = folder.resolve(fileName.replace('\\', '/')).normalize();
+		if (!path.startsWith(folder) || path.equals(folder)) {
+			throw new IOException("not a path inside the server folder: " + fileName);
+		}
+		return path.toFile();
+	}
+
+	/**
+	 * move a file or a whole directory, as the client renamed it
+	 */
+	public static void move(String fileName, String newName) {
+		try {
+			File source = resolve(fileName);
+			File target = resolve(newName);
+			Files.createDirectories(target.getParentFile().toPath());
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			ContentIndex.moveTree(source, target);
+			Log.info(">> Moved " + fileName + " to " + newName + Constants.CRLF);
+		} catch (NoSuchFileException e) {
+			// renamed on the client before it was synced, the client sends it under the new name
+			Log.info(">> Nothing to move at " + fileName + Constants.CRLF);
+		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
+	private static void delete(File file) {
+		if (file.exists() && !file.delete()) {
+			Log.warn("Failed to delete the file " + file);
+		}
+	}
+
+	/**
+	 * delete a file, or a directory with everything in it
+	 */
 	public static void deleteFile(String fileName) {
 		try {
-			String fullPath = "serverFileHolder" + File.separator + fileName;
-			System.out.println(fullPath);
-			File fileToDelete = new File(fullPath);
-			if (fileToDelete.delete()) {
-				System.out.println("File deleted successfully");
+			File fileToDelete = resolve(fileName);
+			Log.debug(fileToDelete.toString());
+			if (fileToDelete.isDirectory()) {
+				ContentIndex.invalidateTree(fileToDelete);
+				try (Stream<Path> tree = Files.walk(fileToDelete.toPath())) {
+					tree.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(Server::delete);
+				}
+			}
+			ContentIndex.invalidate(fileToDelete);
+			if (fileToDelete.delete() || !fileToDelete.exists()) {
+				Log.info("File deleted successfully");
 			} else {
-				System.out.println("Failed to delete the file");
+				Log.warn("Failed to delete the file");
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
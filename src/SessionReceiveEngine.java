@@ -0,0 +1,385 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Receive state of one upload: the selective-repeat window and the buffer
+ * the file writer withdraws from. An ordered session deposits packets strictly
+ * in index order; an unordered one deposits them as they arrive once the head
+ * packet is through, for writers that place every packet at its own file offset.
+ */
+class ReceiveSession {
+	private final int sessionId;
+	private final PacketQueue bufferMonitor;
+	private final boolean ordered;
+	// packets received inside the window but not yet deposited, in slot index % WINDOW_SIZE
+	private final Packet[] outOfOrder = new Packet[Constants.WINDOW_SIZE];
+	// unordered sessions: packets deposited ahead of expectPacketIndex, by slot
+	private final boolean[] deposited = new boolean[Constants.WINDOW_SIZE];
+	private int buffered = 0;
+	private int expectPacketIndex = 0;
+	private boolean finished = false;
+	private long finishedAt = 0;
+	private long lastActivityAt = System.currentTimeMillis();
+	private final long createdAt = System.nanoTime();
+	private long bytesReceived = 0;
+	// index of the first data packet, past 1 when the client resumes a broken transfer
+	private int resumeIndex = 1;
+	// passed to the writer when the client goes away, so that an empty pool never holds up the abort
+	private final Packet abortPacket = new Packet(null, ByteBuffer.allocate(Constants.PACKET_HEADER_SIZE));
+
+	public ReceiveSession(int sessionId, PacketQueue bm) {
+		this(sessionId, bm, true);
+	}
+
+	public ReceiveSession(int sessionId, PacketQueue bm, boolean ordered) {
+		this.sessionId = sessionId;
+		this.bufferMonitor = bm;
+		this.ordered = ordered;
+	}
+
+	/**
+	 * take a received packet into the window and deposit whatever is now in order.
+	 * When blocking is false a full buffer leaves packets in the window instead of waiting.
+	 * The session owns the packet from here on: packets it does not keep are released.
+	 * @return true if the packet should be acknowledged
+	 */
+	public boolean receive(Packet pkt, boolean blocking) {
+		int index = pkt.getIndex();
+		lastActivityAt = System.currentTimeMillis();
+		Metrics.PACKETS_RECEIVED.increment();
+		Metrics.BYTES_RECEIVED.add(pkt.getDatagramLength());
+		bytesReceived += pkt.getDatagramLength();
+		if (index == Constants.TERMINATOR_INDEX) {
+			// only acknowledge the terminator once everything before it has been deposited
+			if (!deliver(blocking) || finished || !deposit(pkt, blocking)) {
+				pkt.release();
+				return deliver(false) && finished;
+			}
+			finished = true;
+			finishedAt = System.currentTimeMillis();
+			Metrics.RECEIVE_RATE.record((long) (bytesReceived / 1024.0 / ((System.nanoTime() - createdAt) / 1e9)));
+			return true;
+		}
+		if (index < expectPacketIndex || index >= expectPacketIndex + Constants.WINDOW_SIZE
+				|| outOfOrder[slot(index)] != null || deposited[slot(index)]) {
+			// already deposited or buffered, or beyond the window so the sender will retransmit it
+			if (index < expectPacketIndex + Constants.WINDOW_SIZE) {
+				Metrics.PACKETS_DUPLICATE.increment();
+			}
+			pkt.release();
+			return index < expectPacketIndex + Constants.WINDOW_SIZE && index >= 0;
+		}
+		outOfOrder[slot(index)] = pkt;
+		buffered++;
+		deliver(blocking);
+		return true;
+	}
+
+	/**
+	 * deposit the packets that are in order
+	 * @return true if no packet is left in the window
+	 */
+	public boolean deliver(boolean blocking) {
+		Packet next;
+		while ((next = outOfOrder[slot(expectPacketIndex)]) != null) {
+			if (!deposit(next, blocking)) {
+				break;
+			}
+			outOfOrder[slot(expectPacketIndex)] = null;
+			buffered--;
+			expectPacketIndex = expectPacketIndex == 0 ? resumeIndex : expectPacketIndex + 1;
+			advance();
+		}
+		if (!ordered && expectPacketIndex > 0) {
+			// the head packet is through: the rest may go in any order
+			for (int i = 0; i < outOfOrder.length && buffered > 0; i++) {
+				if (outOfOrder[i] != null) {
+					if (!deposit(outOfOrder[i], blocking)) {
+						break;
+					}
+					outOfOrder[i] = null;
+					deposited[i] = true;
+					buffered--;
+				}
+			}
+			advance();
+		}
+		return buffered == 0;
+	}
+
+	/**
+	 * move expectPacketIndex past the packets an unordered session already deposited
+	 */
+	private void advance() {
+		while (deposited[slot(expectPacketIndex)]) {
+			deposited[slot(expectPacketIndex)] = false;
+			expectPacketIndex += 1;
+		}
+	}
+
+	private static int slot(int index) {
+		return index % Constants.WINDOW_SIZE;
+	}
+
+	private boolean deposit(Packet pkt, boolean blocking) {
+		if (blocking) {
+			this.bufferMonitor.deposit(pkt);
+			return true;
+		}
+		return this.bufferMonitor.tryDeposit(pkt);
+	}
+
+	/**
+	 * Give up on a transfer the client no longer sends: drop what the window holds and pass
+	 * an abort to the writer, which keeps what it has written for a resume.
+	 * @return false if the buffer is full, the abort has to be retried
+	 */
+	public boolean abort() {
+		for (int i = 0; i < outOfOrder.length; i++) {
+			if (outOfOrder[i] != null) {
+				outOfOrder[i].release();
+				outOfOrder[i] = null;
+			}
+		}
+		buffered = 0;
+		abortPacket.reset(Constants.ABORT_INDEX);
+		return this.bufferMonitor.tryDeposit(abortPacket);
+	}
+
+	/**
+	 * @return the most packets the session can hold at once: a full window, a full buffer and
+	 * the batch the writer has withdrawn from it
+	 */
+	public int getReservedPackets() {
+		return Constants.WINDOW_SIZE + 2 * this.bufferMonitor.capacity();
+	}
+
+	public void setResumeIndex(int resumeIndex) {this.resumeIndex = resumeIndex;}
+	public long getLastActivityAt() {return this.lastActivityAt;}
+	public int getSessionId() {return this.sessionId;}
+	public int getExpectPacketIndex() {return this.expectPacketIndex;}
+	public boolean isFinished() {return this.finished;}
+	public long getFinishedAt() {return this.finishedAt;}
+}
+
+/**
+ * Receives the datagrams of every upload on one non-blocking DatagramChannel
+ * and routes them to their ReceiveSession by the session id in the packet header,
+ * so the server needs neither a socket nor a receiver thread per file.
+ */
+class SessionReceiveEngine extends Thread {
+	private static SessionReceiveEngine instance;
+
+	private final DatagramChannel channel;
+	private final Selector selector;
+	private final Map<Integer, ReceiveSession> sessions = new ConcurrentHashMap<>();
+	private final AtomicInteger nextSessionId = new AtomicInteger(1);
+	// direct packets shared by all sessions, released by the file writers. The pool holds what every
+	// live session can hold at once, so a session with a slow writer never starves the others
+	private final PacketPool packetPool = new PacketPool(Constants.RECEIVE_BUFFER_POOL_SIZE, true, Constants.DATAGRAM_SIZE);
+	private int reservedPackets = 0;
+	// every packet holds the largest datagram, so the direct memory of the pool caps how many sessions can be live
+	private final int maxPackets = (int) Math.max(Constants.RECEIVE_BUFFER_POOL_SIZE,
+			Math.min(Integer.MAX_VALUE, Constants.RECEIVE_POOL_MAX_BYTES / Constants.DATAGRAM_SIZE));
+	// datagrams that arrive while every pooled packet is in use are read into this one and dropped
+	private final Packet overflow = new Packet(null, ByteBuffer.allocateDirect(Constants.MAX_DATAGRAM_SIZE));
+	private final ByteBuffer ackBuffer = ByteBuffer.allocateDirect(Constants.ACK_SIZE);
+
+	public SessionReceiveEngine(InetAddress receiverIp, int receiverPort) throws IOException {
+		super("SessionReceiveEngine");
+		setDaemon(true);
+		this.channel = DatagramChannel.open();
+		this.channel.socket().setReceiveBufferSize(Constants.SOCKET_BUFFER_SIZE);
+		this.channel.bind(new InetSocketAddress(receiverIp, receiverPort));
+		this.channel.configureBlocking(false);
+		this.selector = Selector.open();
+		this.channel.register(selector, SelectionKey.OP_READ);
+	}
+
+	/**
+	 * the engine shared by every session of this server, started on first use
+	 */
+	public static synchronized SessionReceiveEngine getInstance() throws IOException {
+		if (instance == null) {
+			instance = new SessionReceiveEngine(InetAddress.getByName("localhost"), Constants.SERVER_UDP_PORT);
+			instance.start();
+		}
+		return instance;
+	}
+
+	public ReceiveSession openSession(PacketQueue bm, boolean ordered) {
+		return openSession(bm, ordered, 1);
+	}
+
+	/**
+	 * @return null if the pool cannot take another session, the client has to come back later
+	 */
+	public ReceiveSession openSession(PacketQueue bm, boolean ordered, int resumeIndex) {
+		ReceiveSession session = new ReceiveSession(nextSessionId.getAndIncrement(), bm, ordered);
+		session.setResumeIndex(resumeIndex);
+		if (!reserve(session.getReservedPackets())) {
+			return null;
+		}
+		sessions.put(session.getSessionId(), session);
+		return session;
+	}
+
+	/**
+	 * open one session per queue with consecutive ids, for the stripes of one file
+	 */
+	public ReceiveSession[] openSessions(PacketQueue[] queues, boolean ordered) {
+		return openSessions(queues, ordered, new int[0]);
+	}
+
+	/**
+	 * @param resumeIndexes the first data packet of every stripe, 1 for a stripe that is missing
+	 * @return null if the pool cannot take all of the sessions
+	 */
+	public ReceiveSession[] openSessions(PacketQueue[] queues, boolean ordered, int[] resumeIndexes) {
+		int firstId = nextSessionId.getAndAdd(queues.length);
+		ReceiveSession[] opened = new ReceiveSession[queues.length];
+		int reserved = 0;
+		for (int i = 0; i < queues.length; i++) {
+			opened[i] = new ReceiveSession(firstId + i, queues[i], ordered);
+			opened[i].setResumeIndex(i < resumeIndexes.length ? resumeIndexes[i] : 1);
+			reserved += opened[i].getReservedPackets();
+		}
+		if (!reserve(reserved)) {
+			return null;
+		}
+		for (ReceiveSession session : opened) {
+			sessions.put(session.getSessionId(), session);
+		}
+		return opened;
+	}
+
+	/**
+	 * size the pool for the packets the live sessions may hold, never below RECEIVE_BUFFER_POOL_SIZE
+	 * and never above RECEIVE_POOL_MAX_BYTES
+	 * @param packets added when a session opens, negative when it is forgotten
+	 * @return false, and nothing reserved, if the packets would take the pool past its cap
+	 */
+	private synchronized boolean reserve(int packets) {
+		if (packets > 0 && reservedPackets + packets > maxPackets) {
+			Log.warn(">> Receive pool full with " + sessions.size() + " sessions, refused another one" + Constants.CRLF);
+			return false;
+		}
+		reservedPackets += packets;
+		packetPool.resize(Math.max(Constants.RECEIVE_BUFFER_POOL_SIZE, reservedPackets));
+		return true;
+	}
+
+	public int getPort() {
+		return channel.socket().getLocalPort();
+	}
+
+	public void run() {
+		Log.info(">> Receive engine listening on port " + getPort() + Constants.CRLF);
+		while (true) {
+			try {
+				selector.select(Constants.RETRANSMIT_TIMEOUT_MS);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					keys.next();
+					keys.remove();
+					receiveAll();
+				}
+				// retry deposits that a full buffer held back and forget finished sessions
+				sweepSessions();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void receiveAll() throws IOException {
+		while (true) {
+			Packet pkt = packetPool.tryAcquire();
+			if (pkt == null) {
+				pkt = overflow;
+			}
+			ByteBuffer buf = pkt.prepareReceive();
+			SocketAddress sender = channel.receive(buf);
+			if (sender == null) {
+				pkt.release();
+				return;
+			}
+			pkt.setDatagramLength(buf.position());
+			handle(pkt, sender);
+		}
+	}
+
+	private void handle(Packet pkt, SocketAddress sender) throws IOException {
+		if (pkt.getDatagramLength() >= Constants.PACKET_HEADER_SIZE && pkt.getSessionId() == 0
+				&& pkt.getIndex() == Constants.PROBE_INDEX) {
+			// an MTU probe: tell the client how much of it arrived
+			ackBuffer.clear();
+			ackBuffer.putInt(Constants.PROBE_INDEX);
+			ackBuffer.putInt(pkt.getDatagramLength());
+			ackBuffer.flip();
+			channel.send(ackBuffer, sender);
+			pkt.release();
+			return;
+		}
+		ReceiveSession session = null;
+		if (pkt != overflow && pkt.getDatagramLength() >= Constants.PACKET_HEADER_SIZE) {
+			session = sessions.get(pkt.getSessionId());
+		}
+		if (session == null) {
+			pkt.release();
+			return;
+		}
+		int index = pkt.getIndex();
+		if (!pkt.verify()) {
+			// damaged on the way: ask for it again rather than wait for the retransmit timer
+			Metrics.PACKETS_DAMAGED.increment();
+			pkt.release();
+			ackBuffer.clear();
+			ackBuffer.putInt(Constants.NACK_INDEX);
+			ackBuffer.putInt(index);
+			ackBuffer.flip();
+			channel.send(ackBuffer, sender);
+			return;
+		}
+		if (session.receive(pkt, false)) {
+			ackBuffer.clear();
+			ackBuffer.putInt(index);
+			ackBuffer.putInt(session.getExpectPacketIndex());
+			ackBuffer.flip();
+			channel.send(ackBuffer, sender);
+		}
+	}
+
+	private void sweepSessions() {
+		long now = System.currentTimeMillis();
+		Iterator<ReceiveSession> it = sessions.values().iterator();
+		while (it.hasNext()) {
+			ReceiveSession session = it.next();
+			if (session.isFinished()) {
+				if (now - session.getFinishedAt() > Constants.SESSION_LINGER_MS) {
+					it.remove();
+					reserve(-session.getReservedPackets());
+				}
+			} else if (now - session.getLastActivityAt() > Constants.TRANSFER_IDLE_TIMEOUT_MS) {
+				// the client went away: unblock the writer so it can keep what it has for a resume
+				if (session.abort()) {
+					Log.warn(">> Session " + session.getSessionId() + " idle, abandoned");
+					it.remove();
+					reserve(-session.getReservedPackets());
+				}
+			} else {
+				session.deliver(false);
+			}
+		}
+	}
+}
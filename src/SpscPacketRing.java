@@ -0,0 +1,154 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.locks.LockSupport;
+
+// The sequence counters are written by different threads; the padding keeps each
+// of them on its own cache line so the producer and consumer do not false-share.
+abstract class SpscRingPad0 {
+	long p00, p01, p02, p03, p04, p05, p06, p07;
+}
+
+abstract class SpscRingTail extends SpscRingPad0 {
+	// next slot to fill, written by the producer only
+	volatile long tail;
+	// the producer's last view of head
+	long headCache;
+}
+
+abstract class SpscRingPad1 extends SpscRingTail {
+	long p10, p11, p12, p13, p14, p15, p16, p17;
+}
+
+abstract class SpscRingHead extends SpscRingPad1 {
+	// next slot to empty, written by the consumer only
+	volatile long head;
+	// the consumer's last view of tail
+	long tailCache;
+}
+
+abstract class SpscRingPad2 extends SpscRingHead {
+	long p20, p21, p22, p23, p24, p25, p26, p27;
+}
+
+/**
+ * Lock-free single-producer/single-consumer ring buffer. Exactly one thread may deposit
+ * and exactly one thread may withdraw. A waiting side spins, then yields, then parks
+ * for intervals that double up to MAX_PARK_NANOS, so no thread ever has to be notified
+ * and a side that waits for long wakes up rarely.
+ */
+class SpscPacketRing extends SpscRingPad2 implements PacketQueue {
+	private static final VarHandle HEAD;
+	private static final VarHandle TAIL;
+	private static final int SPIN_TRIES = 100;
+	private static final int YIELD_TRIES = 100;
+	private static final long PARK_NANOS = 50_000;
+	private static final long MAX_PARK_NANOS = 10_000_000;
+
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			HEAD = lookup.findVarHandle(SpscRingHead.class, "head", long.class);
+			TAIL = lookup.findVarHandle(SpscRingTail.class, "tail", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final Packet[] buffer;
+	private final int mask;
+
+	/**
+	 * @param capacity rounded up to a power of two
+	 */
+	public SpscPacketRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		this.buffer = new Packet[size];
+		this.mask = size - 1;
+	}
+
+	public void deposit(Packet pkt) {
+		if (tryDeposit(pkt)) {
+			return;
+		}
+		long start = System.nanoTime();
+		for (int tries = 0; !tryDeposit(pkt); tries++) {
+			idle(tries);
+		}
+		Metrics.DEPOSIT_BLOCKED_MICROS.record((System.nanoTime() - start) / 1000);
+	}
+
+	public Packet withdraw() {
+		Packet pkt = tryWithdraw();
+		if (pkt != null) {
+			return pkt;
+		}
+		long start = System.nanoTime();
+		for (int tries = 0; (pkt = tryWithdraw()) == null; tries++) {
+			idle(tries);
+		}
+		Metrics.WITHDRAW_BLOCKED_MICROS.record((System.nanoTime() - start) / 1000);
+		return pkt;
+	}
+
+	public boolean tryDeposit(Packet pkt) {
+		long t = tail;
+		if (t - headCache >= buffer.length) {
+			headCache = (long) HEAD.getAcquire(this);
+			if (t - headCache >= buffer.length) {
+				return false;
+			}
+		}
+		buffer[(int) t & mask] = pkt;
+		TAIL.setRelease(this, t + 1);
+		Metrics.QUEUE_OCCUPANCY.record(t + 1 - (long) HEAD.getAcquire(this));
+		return true;
+	}
+
+	public Packet tryWithdraw() {
+		long h = head;
+		if (h >= tailCache) {
+			tailCache = (long) TAIL.getAcquire(this);
+			if (h >= tailCache) {
+				return null;
+			}
+		}
+		int slot = (int) h & mask;
+		Packet pkt = buffer[slot];
+		buffer[slot] = null;
+		HEAD.setRelease(this, h + 1);
+		return pkt;
+	}
+
+	public int drainTo(Packet[] dest, int offset, int max) {
+		long h = head;
+		long available = (long) TAIL.getAcquire(this) - h;
+		int count = (int) Math.min(available, max);
+		for (int i = 0; i < count; i++) {
+			int slot = (int) (h + i) & mask;
+			dest[offset + i] = buffer[slot];
+			buffer[slot] = null;
+		}
+		// publish the whole batch with one store
+		HEAD.setRelease(this, h + count);
+		return count;
+	}
+
+	public int capacity() {
+		return buffer.length;
+	}
+
+	public int size() {
+		return (int) ((long) TAIL.getAcquire(this) - (long) HEAD.getAcquire(this));
+	}
+
+	private static void idle(int tries) {
+		if (tries < SPIN_TRIES) {
+			Thread.onSpinWait();
+		} else if (tries < SPIN_TRIES + YIELD_TRIES) {
+			Thread.yield();
+		} else {
+			int parks = tries - SPIN_TRIES - YIELD_TRIES;
+			LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, PARK_NANOS << Math.min(parks, 8)));
+		}
+	}
+}
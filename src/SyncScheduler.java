@@ -0,0 +1,89 @@
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A sync waiting in the SyncScheduler queue, ordered by priority and then by submission.
+ */
+class PrioritizedSync implements Runnable, Comparable<PrioritizedSync> {
+	private final long priority;
+	private final long sequence;
+	private final Runnable task;
+
+	PrioritizedSync(long priority, long sequence, Runnable task) {
+		this.priority = priority;
+		this.sequence = sequence;
+		this.task = task;
+	}
+
+	public void run() {
+		task.run();
+	}
+
+	public int compareTo(PrioritizedSync other) {
+		int order = Long.compare(priority, other.priority);
+		return order != 0 ? order : Long.compare(sequence, other.sequence);
+	}
+}
+
+/**
+ * Runs syncs on a bounded pool of threads, lowest priority value first, so that with the file
+ * size as the priority small files are not stuck behind large ones. At most concurrency syncs run
+ * at once and at most queueLimit wait; submit() blocks while the queue is full, trySubmit() turns
+ * the sync down instead.
+ */
+public class SyncScheduler {
+	private final ThreadPoolExecutor pool;
+	private final Semaphore slots;
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicLong blockedNanos = new AtomicLong();
+	private final AtomicLong deferred = new AtomicLong();
+
+	public SyncScheduler(int concurrency, int queueLimit) {
+		this.pool = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>());
+		this.slots = new Semaphore(concurrency + queueLimit);
+	}
+
+	public void submit(long priority, Runnable task) throws InterruptedException {
+		if (!slots.tryAcquire()) {
+			long start = System.nanoTime();
+			slots.acquire();
+			blockedNanos.addAndGet(System.nanoTime() - start);
+		}
+		execute(priority, task);
+	}
+
+	/**
+	 * @return false if the queue is full, the task is not queued
+	 */
+	public boolean trySubmit(long priority, Runnable task) {
+		if (!slots.tryAcquire()) {
+			deferred.incrementAndGet();
+			return false;
+		}
+		execute(priority, task);
+		return true;
+	}
+
+	private void execute(long priority, Runnable task) {
+		pool.execute(new PrioritizedSync(priority, sequence.getAndIncrement(), () -> {
+			try {
+				task.run();
+			} finally {
+				slots.release();
+			}
+		}));
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	public int getQueued() {return pool.getQueue().size();}
+	public int getActive() {return pool.getActiveCount();}
+	public long getBlockedMillis() {return blockedNanos.get() / 1000000;}
+	public long getDeferred() {return deferred.get();}
+}
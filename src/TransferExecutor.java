@@ -0,0 +1,68 @@
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the stages of the transfer pipelines (FileReader, PacketSender, PacketReceiver,
+ * FileWriter) and the server's request handlers, so that a transfer does not start threads of
+ * its own. In "virtual" mode every task gets a virtual thread, which needs Java 21; in "shared"
+ * mode the tasks run on a pool of platform threads that are kept between transfers. "auto", the
+ * default, takes virtual threads where the runtime has them.
+ *
+ * The stages only block in PacketQueue and PacketPool waits, channel reads and file I/O. The
+ * default SpscPacketRing and the PacketPool park instead of waiting on a monitor, so a virtual
+ * thread that waits gives its carrier thread back and thousands of transfers can be in flight at
+ * once. The "monitor" queue waits on its monitor and pins the carrier on JDK 20 and 21.
+ */
+public class TransferExecutor {
+	public static final String AUTO = "auto";
+	public static final String VIRTUAL = "virtual";
+	public static final String SHARED = "shared";
+
+	private static final ExecutorService executor = create(Constants.EXECUTOR);
+
+	public static ExecutorService get() {
+		return executor;
+	}
+
+	public static Future<?> start(Runnable stage) {
+		return executor.submit(stage);
+	}
+
+	/**
+	 * wait for the stages of a transfer to finish
+	 */
+	public static void join(List<Future<?>> stages) throws InterruptedException {
+		for (Future<?> stage : stages) {
+			try {
+				stage.get();
+			} catch (ExecutionException e) {
+				e.getCause().printStackTrace();
+			}
+		}
+	}
+
+	private static ExecutorService create(String mode) {
+		if (!SHARED.equals(mode)) {
+			try {
+				// looked up at run time so that the code still builds and runs on JDK 20, where they are a preview feature
+				return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (ReflectiveOperationException e) {
+				if (VIRTUAL.equals(mode)) {
+					Log.info("Virtual threads need Java 21, transfers run on a shared pool");
+				}
+			}
+		}
+		AtomicInteger count = new AtomicInteger();
+		ThreadFactory factory = r -> {
+			Thread thread = new Thread(r, "transfer-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+		return Executors.newCachedThreadPool(factory);
+	}
+}
@@ -0,0 +1,230 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Progress of an upload that can be resumed: the data goes to ".name.part" next to the target
+ * and ".name.journal" keeps a bitmap of the packet indices that are safely in it. A transfer of
+ * the same file (same size and mtime on the client) that broke off continues from the first
+ * missing index; on completion the part file is renamed over the target in one step.
+ * A file sent in stripes has one journal per stripe over the shared part file, ".name.journal"
+ * for the first and ".name.k.journal" for stripe k, each with the packet indices of its stripe.
+ *
+ * Journal format: size (8 bytes) | mtime (8 bytes) | packet content size (4 bytes) | stripes
+ * (4 bytes) | bitmap, bit i set when packet i + 1 has been written. The bitmap is only saved
+ * after the part file has been forced to disk, so it never claims data that could still be lost.
+ */
+public class TransferJournal {
+	private static final int HEADER_SIZE = 24;
+	// targets with a transfer in progress; a second one for the same file does not share its part file
+	private static final Set<File> active = ConcurrentHashMap.newKeySet();
+
+	private final File target;
+	private final File partFile;
+	private final File journalFile;
+	private final boolean persistent;
+	private final long size;
+	private final long mtime;
+	private final int payloadSize;
+	private final int stripes;
+	private final BitSet received;
+	private int unsaved = 0;
+
+	private TransferJournal(File target, File partFile, File journalFile, long size, long mtime, int payloadSize,
+							int stripes, BitSet received) {
+		this.target = target;
+		this.partFile = partFile;
+		this.journalFile = journalFile;
+		this.persistent = journalFile != null;
+		this.size = size;
+		this.mtime = mtime;
+		this.payloadSize = payloadSize;
+		this.stripes = stripes;
+		this.received = received;
+	}
+
+	/**
+	 * the journal of a transfer of target, picking up the progress of an earlier attempt if it
+	 * sent the same version of the file in packets of the same size
+	 */
+	public static TransferJournal open(File target, long size, long mtime, int payloadSize) throws IOException {
+		return open(target, size, mtime, payloadSize, 1)[0];
+	}
+
+	/**
+	 * the journals of a transfer of target in stripes byte ranges, one per stripe; an earlier
+	 * attempt is picked up if it sent the same version of the file in as many stripes.
+	 * Without an mtime the version is unknown and nothing is journaled.
+	 */
+	public static TransferJournal[] open(File target, long size, long mtime, int payloadSize, int stripes)
+			throws IOException {
+		target = target.getAbsoluteFile();
+		Files.createDirectories(target.getParentFile().toPath());
+		TransferJournal[] journals = new TransferJournal[stripes];
+		if (mtime < 0 || !active.add(target)) {
+			// an unknown version, or another transfer of this file is still running: write aside and do not journal
+			File partFile = File.createTempFile("." + target.getName() + ".", ".part", target.getParentFile());
+			for (int i = 0; i < stripes; i++) {
+				journals[i] = new TransferJournal(target, partFile, null, size, mtime, payloadSize, stripes, new BitSet());
+			}
+			return journals;
+		}
+		File partFile = new File(target.getParentFile(), "." + target.getName() + ".part");
+		// the first journal decides whether the part file is kept, the others only add their progress
+		boolean resumable = load(journalFile(target, 0), partFile, size, mtime, payloadSize, stripes) != null;
+		if (!resumable) {
+			Files.deleteIfExists(partFile.toPath());
+		}
+		for (int i = 0; i < stripes; i++) {
+			File journalFile = journalFile(target, i);
+			BitSet received = resumable ? load(journalFile, partFile, size, mtime, payloadSize, stripes) : null;
+			if (received == null) {
+				received = new BitSet();
+				Files.deleteIfExists(journalFile.toPath());
+			}
+			journals[i] = new TransferJournal(target, partFile, journalFile, size, mtime, payloadSize, stripes, received);
+		}
+		return journals;
+	}
+
+	private static File journalFile(File target, int stripe) {
+		return new File(target.getParentFile(), "." + target.getName() + (stripe == 0 ? "" : "." + stripe) + ".journal");
+	}
+
+	private static BitSet load(File journalFile, File partFile, long size, long mtime, int payloadSize, int stripes) {
+		if (!journalFile.isFile() || !partFile.isFile()) {
+			return null;
+		}
+		try (RandomAccessFile journal = new RandomAccessFile(journalFile, "r")) {
+			if (journal.length() < HEADER_SIZE || journal.readLong() != size || journal.readLong() != mtime
+					|| journal.readInt() != payloadSize || journal.readInt() != stripes) {
+				return null;
+			}
+			byte[] bitmap = new byte[(int) (journal.length() - HEADER_SIZE)];
+			journal.readFully(bitmap);
+			return BitSet.valueOf(bitmap);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the first data packet index the client has to send
+	 */
+	public int getResumeIndex() {
+		return received.nextClearBit(0) + 1;
+	}
+
+	public File getPartFile() {
+		return partFile;
+	}
+
+	/**
+	 * record a packet written to the part file, and save the journal every JOURNAL_INTERVAL packets
+	 */
+	public void received(int index, FileChannel data) throws IOException {
+		received.set(index - 1);
+		if (++unsaved >= Constants.JOURNAL_INTERVAL) {
+			save(data);
+		}
+	}
+
+	public void save(FileChannel data) throws IOException {
+		unsaved = 0;
+		if (!persistent) {
+			return;
+		}
+		long start = System.nanoTime();
+		data.force(false);
+		try (RandomAccessFile journal = new RandomAccessFile(journalFile, "rw")) {
+			journal.setLength(0);
+			journal.writeLong(size);
+			journal.writeLong(mtime);
+			journal.writeInt(payloadSize);
+			journal.writeInt(stripes);
+			journal.write(received.toByteArray());
+			journal.getFD().sync();
+		}
+		Metrics.DISK_FSYNC_MICROS.record((System.nanoTime() - start) / 1000);
+	}
+
+	/**
+	 * move the finished part file over the target, which keeps the mtime of the client's file.
+	 * Called on one journal of a striped transfer once every stripe is in.
+	 */
+	public void complete() throws IOException {
+		try {
+			Files.move(partFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			if (mtime >= 0) {
+				target.setLastModified(mtime);
+			}
+			SignatureCache.invalidate(target);
+			ContentIndex.invalidate(target);
+			if (persistent) {
+				for (int i = 0; i < stripes; i++) {
+					Files.deleteIfExists(journalFile(target, i).toPath());
+				}
+			}
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * the stripe is not what the client sent: the next attempt sends it whole again, while the
+	 * other stripes keep what they have in the shared part file
+	 */
+	public void restart(FileChannel data) throws IOException {
+		received.clear();
+		save(data);
+	}
+
+	/**
+	 * the transfer broke off: keep the part file and the journal for the next attempt
+	 */
+	public void abandon(FileChannel data) throws IOException {
+		try {
+			if (persistent && data != null) {
+				save(data);
+			} else if (!persistent) {
+				Files.deleteIfExists(partFile.toPath());
+			}
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * the part file is not what the client sent: start the next attempt from scratch
+	 */
+	public void discard(FileChannel data) throws IOException {
+		try {
+			if (data != null) {
+				data.close();
+			}
+			Files.deleteIfExists(partFile.toPath());
+			if (persistent) {
+				Files.deleteIfExists(journalFile.toPath());
+			}
+		} finally {
+			close();
+		}
+	}
+
+	public File getTarget() {
+		return target;
+	}
+
+	private void close() {
+		if (persistent) {
+			active.remove(target);
+		}
+	}
+}
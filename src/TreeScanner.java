@@ -0,0 +1,140 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Size and mtime of a file, as listed by a TreeScanner or by the server.
+ */
+class FileState {
+	final long size;
+	final long lastModified;
+	// identity of a local file that survives a rename, null in a listing of the server or if the file system has none
+	final Object fileKey;
+
+	FileState(long size, long lastModified) {
+		this(size, lastModified, null);
+	}
+
+	FileState(long size, long lastModified, Object fileKey) {
+		this.size = size;
+		this.lastModified = lastModified;
+		this.fileKey = fileKey;
+	}
+
+	/**
+	 * @return true if other has the same size and mtime
+	 */
+	boolean matches(FileState other) {
+		return other != null && size == other.size && lastModified == other.lastModified;
+	}
+}
+
+/**
+ * Lists the regular files of a directory tree with their size and mtime. Every directory is
+ * read by its own fork/join task and the entries of a large one are split between tasks of
+ * SCAN_BATCH entries, so the stat calls are spread over SCAN_THREADS threads instead of running
+ * one after the other as in walkFileTree. Files are keyed by their path relative to the root,
+ * with '/' separators.
+ */
+public class TreeScanner extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+	private static final int SCAN_BATCH = 1024;
+
+	private final Path root;
+	private final Path dir;
+	private final Map<String, FileState> files;
+	private final DirectoryVisitor visitor;
+	// entries of dir to stat, null until dir has been listed
+	private List<Path> entries = null;
+	private int from;
+	private int to;
+
+	interface DirectoryVisitor {
+		/**
+		 * called for every directory before its entries are listed
+		 */
+		void visit(Path dir) throws IOException;
+	}
+
+	private TreeScanner(Path root, Path dir, Map<String, FileState> files, DirectoryVisitor visitor) {
+		this.root = root;
+		this.dir = dir;
+		this.files = files;
+		this.visitor = visitor;
+	}
+
+	private TreeScanner(TreeScanner parent, int from, int to) {
+		this(parent.root, parent.dir, parent.files, parent.visitor);
+		this.entries = parent.entries;
+		this.from = from;
+		this.to = to;
+	}
+
+	public static Map<String, FileState> scan(Path root) {
+		return scan(root, dir -> {});
+	}
+
+	public static Map<String, FileState> scan(Path root, DirectoryVisitor visitor) {
+		Map<String, FileState> files = new ConcurrentHashMap<>();
+		ForkJoinPool pool = new ForkJoinPool(Constants.SCAN_THREADS);
+		try {
+			pool.invoke(new TreeScanner(root, root, files, visitor));
+		} finally {
+			pool.shutdown();
+		}
+		return files;
+	}
+
+	protected void compute() {
+		if (entries == null) {
+			entries = new ArrayList<>();
+			try {
+				visitor.visit(dir);
+				try (DirectoryStream<Path> listing = Files.newDirectoryStream(dir)) {
+					for (Path entry : listing) {
+						entries.add(entry);
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			from = 0;
+			to = entries.size();
+		}
+		if (to - from > SCAN_BATCH) {
+			int middle = (from + to) >>> 1;
+			invokeAll(new TreeScanner(this, from, middle), new TreeScanner(this, middle, to));
+			return;
+		}
+		List<TreeScanner> subdirs = new ArrayList<>();
+		for (Path entry : entries.subList(from, to)) {
+			BasicFileAttributes attrs;
+			try {
+				attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			} catch (IOException e) {
+				// deleted while the tree is listed
+				continue;
+			}
+			if (attrs.isDirectory()) {
+				subdirs.add(new TreeScanner(root, entry, files, visitor));
+			} else if (attrs.isRegularFile()) {
+				files.put(key(root, entry), new FileState(attrs.size(), attrs.lastModifiedTime().toMillis(), attrs.fileKey()));
+			}
+		}
+		invokeAll(subdirs);
+	}
+
+	public static String key(Path root, Path file) {
+		return root.relativize(file).toString().replace(File.separatorChar, '/');
+	}
+}